@@ -0,0 +1,21 @@
+package com.lovetropics.donations;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The check every DM from a pending user goes through.
+ */
+@State(Scope.Thread)
+public class EmailPatternBenchmark {
+    
+    @Param({ "someone@example.com", "first.last+tag@mail.subdomain.example.co.uk", "hello, I donated yesterday", "   " })
+    public String input;
+    
+    @Benchmark
+    public boolean matches() {
+        return LoveTropicsListener.MAYBE_EMAIL.matcher(input).matches();
+    }
+}
@@ -0,0 +1,106 @@
+package com.lovetropics.donations;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.Optional;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import discord4j.core.DiscordClient;
+import discord4j.core.event.domain.message.MessageCreateEvent;
+import discord4j.core.object.entity.Member;
+import discord4j.core.object.entity.Message;
+import discord4j.core.object.entity.MessageChannel;
+import discord4j.core.object.entity.PrivateChannel;
+import discord4j.core.object.entity.User;
+import discord4j.core.object.util.Snowflake;
+import reactor.core.publisher.Mono;
+
+/**
+ * A pending user sending their email and getting accepted, from {@link LoveTropicsListener#onMessage}
+ * through to the role grants, DMs and journal writes. Discord objects are stub-only mocks and the
+ * donation API always answers immediately, so this measures the bot's own overhead (plus that of
+ * the mocks) rather than any network latency.
+ */
+@State(Scope.Benchmark)
+public class ListenerBenchmark {
+    
+    private static final long USER = 123456789012345678L;
+    
+    private File folder;
+    private StateStore store;
+    private LoveTropicsListener listener;
+    private MessageCreateEvent event;
+    
+    private static <T> T stub(Class<T> type) {
+        return mock(type, withSettings().stubOnly());
+    }
+    
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        folder = Files.createTempDirectory("dv-listener").toFile();
+        
+        DonationApi api = new DonationApi("http://localhost", "", 1, Duration.ofSeconds(1), Duration.ofSeconds(1), false,
+                new CircuitBreaker("benchmark", 5, Duration.ofSeconds(1))) {
+            
+            @Override
+            public Mono<Double> getTotal(String email) {
+                return Mono.just(50.0);
+            }
+        };
+        
+        Message reply = stub(Message.class);
+        PrivateChannel dm = stub(PrivateChannel.class);
+        when(dm.getId()).thenReturn(Snowflake.of(2L));
+        when(dm.createMessage(anyString())).thenReturn(Mono.just(reply));
+        
+        Member member = stub(Member.class);
+        when(member.addRole(any(Snowflake.class))).thenReturn(Mono.empty());
+        DiscordClient client = stub(DiscordClient.class);
+        when(client.getMemberById(any(Snowflake.class), any(Snowflake.class))).thenReturn(Mono.just(member));
+        
+        User author = stub(User.class);
+        when(author.getId()).thenReturn(Snowflake.of(USER));
+        Message message = stub(Message.class);
+        when(message.getAuthor()).thenReturn(Optional.of(author));
+        when(message.getChannel()).thenReturn(Mono.<MessageChannel>just(dm));
+        when(message.getContent()).thenReturn(Optional.of("someone@example.com"));
+        event = stub(MessageCreateEvent.class);
+        when(event.getMessage()).thenReturn(message);
+        
+        store = new StateStore(folder, Duration.ofSeconds(1));
+        DiscordActions actions = new DiscordActions(client, 4, 0, Duration.ofMillis(1), Duration.ofMillis(1), Duration.ofSeconds(10));
+        listener = new LoveTropicsListener(api, new DonorIndex(api, 500), cache(), cache(), new UserLanes(64, Duration.ofSeconds(60)), actions, store,
+                new DeferredVerifications(folder, Duration.ofSeconds(1)), 25);
+    }
+    
+    private static <K> DonationCache<K> cache() {
+        return new DonationCache<>(10000, Duration.ofMinutes(1), Duration.ofMinutes(1), Duration.ofMinutes(1));
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.flush();
+        FileUtils.deleteDirectory(folder);
+    }
+    
+    @Benchmark
+    public void onMessage() {
+        store.setState(USER, UserStore.State.PENDING);
+        listener.onMessage(event).block();
+    }
+}
@@ -0,0 +1,85 @@
+package com.lovetropics.donations;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import discord4j.core.object.util.Snowflake;
+
+/**
+ * Full snapshot writes and loads of data.json, for state files of different sizes.
+ */
+@State(Scope.Benchmark)
+public class PersistenceBenchmark {
+    
+    @Param({ "1000", "10000", "100000", "1000000" })
+    public int users;
+    
+    private File folder;
+    private SaveHelper<Data> saveHelper;
+    private Data data;
+    
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        folder = Files.createTempDirectory("dv-persistence").toFile();
+        saveHelper = new SaveHelper<>(folder, StateStore.GSON, new Data());
+        data = createData(users);
+        saveHelper.writeJson("data.json", data);
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(folder);
+    }
+    
+    @Benchmark
+    public void writeJson() {
+        saveHelper.writeJson("out.json", data);
+    }
+    
+    @Benchmark
+    public Data fromJson() {
+        return saveHelper.fromJson("data.json", Data.class);
+    }
+    
+    /**
+     * Builds state shaped roughly like a real event: most users verified, a few stuck pending with
+     * several attempts.
+     */
+    static Data createData(int users) {
+        Random rand = new Random(users);
+        Data ret = new Data();
+        ret.setMessage(Snowflake.of(1037017382985666590L));
+        UserStore store = ret.getUsers();
+        for (int i = 0; i < users; i++) {
+            long id = 200000000000000000L + rand.nextInt(Integer.MAX_VALUE) * 1000L + i % 1000;
+            int roll = rand.nextInt(10);
+            String email = "donor" + i + "@example.com";
+            if (roll < 6) {
+                store.setState(id, UserStore.State.ACCEPTED);
+                store.setVerifiedEmail(id, email);
+                store.addAttemptedEmail(id, email);
+                store.addResets(id, 1, 999);
+            } else if (roll < 9) {
+                store.setState(id, UserStore.State.VERIFIED);
+            } else {
+                store.setState(id, UserStore.State.PENDING);
+                for (int j = 0; j < 3; j++) {
+                    store.addAttemptedEmail(id, "typo" + j + "." + email);
+                }
+                store.addResets(id, 3, 999);
+            }
+        }
+        return ret;
+    }
+}
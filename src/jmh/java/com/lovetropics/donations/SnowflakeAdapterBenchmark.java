@@ -0,0 +1,30 @@
+package com.lovetropics.donations;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import com.google.gson.Gson;
+
+import discord4j.core.object.util.Snowflake;
+
+/**
+ * A single ID through the {@link SnowflakeTypeAdapter} registered for data.json.
+ */
+@State(Scope.Thread)
+public class SnowflakeAdapterBenchmark {
+    
+    private final Gson gson = StateStore.GSON;
+    private final Snowflake id = Snowflake.of(444746940761243652L);
+    private final String json = "444746940761243652";
+    
+    @Benchmark
+    public String serialize() {
+        return gson.toJson(id, Snowflake.class);
+    }
+    
+    @Benchmark
+    public Snowflake deserialize() {
+        return gson.fromJson(json, Snowflake.class);
+    }
+}
@@ -0,0 +1,71 @@
+package com.lovetropics.donations;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.openjdk.jol.info.GraphLayout;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.lovetropics.donations.UserStore.State;
+
+import discord4j.core.object.util.Snowflake;
+
+/**
+ * Measures the heap retained by the user state in {@link Data}, against the four Snowflake-keyed
+ * concurrent maps it replaced. Every user has a state, a verified email, one attempted email and a
+ * reset count. Email strings are shared by both and left out of the totals.
+ * <p>
+ * Not a JMH benchmark, as the result is a size rather than a rate. Run with "gradlew footprint".
+ */
+public class UserStoreFootprint {
+    
+    public static void main(String[] args) {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        
+        List<String> emails = new ArrayList<>(users);
+        long[] ids = new long[users];
+        for (int i = 0; i < users; i++) {
+            emails.add("donor" + i + "@example.com");
+            ids[i] = 200000000000000000L + i * 7919L;
+        }
+        
+        Map<Snowflake, State> userStates = Maps.newConcurrentMap();
+        Map<Snowflake, String> verifiedEmails = Maps.newConcurrentMap();
+        Map<Snowflake, Set<String>> attemptedEmails = Maps.newConcurrentMap();
+        Map<Snowflake, Integer> resets = Maps.newConcurrentMap();
+        for (int i = 0; i < users; i++) {
+            Snowflake id = Snowflake.of(ids[i]);
+            userStates.put(id, State.VERIFIED);
+            verifiedEmails.put(id, emails.get(i));
+            attemptedEmails.computeIfAbsent(id, $ -> Sets.newConcurrentHashSet()).add(emails.get(i));
+            resets.put(id, 1);
+        }
+        long maps = sizeWithout(emails, userStates, verifiedEmails, attemptedEmails, resets);
+        
+        UserStore store = new UserStore();
+        for (int i = 0; i < users; i++) {
+            store.setState(ids[i], State.VERIFIED);
+            store.addAttemptedEmail(ids[i], emails.get(i));
+            store.setVerifiedEmail(ids[i], emails.get(i));
+            store.setResets(ids[i], 1);
+        }
+        long table = sizeWithout(emails, store);
+        
+        System.out.printf("%d users, excluding email strings%n", users);
+        System.out.printf("  Snowflake maps: %8.1f MB, %4d bytes/user%n", maps / 1e6, maps / users);
+        System.out.printf("  UserStore:      %8.1f MB, %4d bytes/user%n", table / 1e6, table / users);
+    }
+    
+    /**
+     * @return The size of everything reachable from {@code roots}, less what is reachable from {@code shared}
+     */
+    private static long sizeWithout(Object shared, Object... roots) {
+        Object[] all = new Object[roots.length + 1];
+        System.arraycopy(roots, 0, all, 0, roots.length);
+        all[roots.length] = shared;
+        return GraphLayout.parseInstance(all).totalSize() - GraphLayout.parseInstance(shared).totalSize();
+    }
+}
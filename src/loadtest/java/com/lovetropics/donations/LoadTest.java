@@ -0,0 +1,284 @@
+package com.lovetropics.donations;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+
+import discord4j.core.DiscordClient;
+import discord4j.core.event.domain.message.MessageCreateEvent;
+import discord4j.core.event.domain.message.ReactionAddEvent;
+import discord4j.core.object.entity.Member;
+import discord4j.core.object.entity.Message;
+import discord4j.core.object.entity.MessageChannel;
+import discord4j.core.object.entity.PrivateChannel;
+import discord4j.core.object.entity.User;
+import discord4j.core.object.reaction.ReactionEmoji;
+import discord4j.core.object.util.Snowflake;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.UnicastProcessor;
+
+/**
+ * Rehearses event-day traffic locally. New synthetic users arrive at a fixed rate, react to the
+ * verification message, and then DM their email, some of them after first getting it wrong. Every
+ * event goes through the same pipelines, lanes and listener as in production, against
+ * {@link StubDonationApi} and stub Discord objects which answer after a configurable delay.
+ */
+public class LoadTest {
+    
+    private static class Arguments {
+        @Parameter(names = "--rate", description = "New users per second, default = 500")
+        private int rate = 500;
+        
+        @Parameter(names = "--duration", description = "Seconds to keep adding users for, default = 60")
+        private int duration = 60;
+        
+        @Parameter(names = "--retryrate", description = "Fraction of users who enter a wrong email first, default = 0.3")
+        private double retryRate = 0.3;
+        
+        @Parameter(names = "--linkedrate", description = "Fraction of users whose Discord account is linked to their donations, default = 0.2")
+        private double linkedRate = 0.2;
+        
+        @Parameter(names = "--apilatency", description = "Mean donation API latency in milliseconds, default = 50")
+        private long apiLatency = 50;
+        
+        @Parameter(names = "--apierrors", description = "Fraction of donation API requests which fail, default = 0.01")
+        private double apiErrors = 0.01;
+        
+        @Parameter(names = "--discordlatency", description = "Latency of stub Discord requests in milliseconds, default = 100")
+        private long discordLatency = 100;
+        
+        @Parameter(names = "--thinktime", description = "Maximum delay in milliseconds before a user answers the bot, default = 2000")
+        private long thinkTime = 2000;
+        
+        @Parameter(names = "--lanes", description = "Amount of user lanes, default = 64")
+        private int lanes = 64;
+        
+        @Parameter(names = "--maxevents", description = "Maximum events of each type handled at once, default = 32")
+        private int maxEvents = 32;
+        
+        @Parameter(names = "--partitions", description = "Amount of partitions to split user state into, default = 1")
+        private int partitions = 1;
+        
+        @Parameter(names = "--queuesize", description = "Maximum events of each type waiting to be handled, default = 10000")
+        private int queueSize = 10000;
+    }
+    
+    private static class Timed<E> {
+        final E event;
+        final long emittedAt = System.nanoTime();
+        final Runnable done;
+        
+        Timed(E event, Runnable done) {
+            this.event = event;
+            this.done = done;
+        }
+    }
+    
+    private static final Snowflake SELF = Snowflake.of(1L);
+    private static final Snowflake VERIFY_MESSAGE = Snowflake.of(2L);
+    private static final ReactionEmoji REACT = ReactionEmoji.unicode("\uD83D\uDCB8");
+    private static final long USER_BASE = 300000000000000000L;
+    private static final long CHANNEL_BASE = 400000000000000000L;
+    
+    private final Arguments args;
+    private final DiscordClient client;
+    private final Message reply;
+    private final long[] latencies;
+    private final AtomicInteger samples = new AtomicInteger();
+    private final AtomicLong peakHeap = new AtomicLong();
+    
+    private FluxSink<Timed<ReactionAddEvent>> reactions;
+    private FluxSink<Timed<MessageCreateEvent>> messages;
+    
+    private LoadTest(Arguments args) {
+        this.args = args;
+        this.reply = stub(Message.class);
+        Member member = stub(Member.class);
+        when(member.addRole(any(Snowflake.class))).thenReturn(discordDelay(Mono.<Void>empty()));
+        this.client = stub(DiscordClient.class);
+        when(client.getSelfId()).thenReturn(Optional.of(SELF));
+        when(client.getMemberById(any(Snowflake.class), any(Snowflake.class))).thenReturn(discordDelay(Mono.just(member)));
+        // Deferred verifications DM users by ID, so any user will do
+        PrivateChannel anyDm = stub(PrivateChannel.class);
+        when(anyDm.createMessage(anyString())).thenReturn(discordDelay(Mono.just(reply)));
+        User anyUser = stub(User.class);
+        when(anyUser.getPrivateChannel()).thenReturn(Mono.just(anyDm));
+        when(client.getUserById(any(Snowflake.class))).thenReturn(discordDelay(Mono.just(anyUser)));
+        // Up to three events per user
+        this.latencies = new long[Math.max(1, args.rate * args.duration * 3)];
+    }
+    
+    private static <T> T stub(Class<T> type) {
+        return mock(type, withSettings().stubOnly());
+    }
+    
+    private <T> Mono<T> discordDelay(Mono<T> mono) {
+        return args.discordLatency > 0 ? Mono.delay(Duration.ofMillis(args.discordLatency)).then(mono) : mono;
+    }
+    
+    public static void main(String[] argv) throws Exception {
+        Arguments args = new Arguments();
+        JCommander.newBuilder().addObject(args).build().parse(argv);
+        new LoadTest(args).run();
+        System.exit(0);
+    }
+    
+    private void run() throws Exception {
+        File folder = Files.createTempDirectory("dv-loadtest").toFile();
+        StubDonationApi stubApi = new StubDonationApi(args.apiLatency, args.apiErrors, args.linkedRate);
+        try {
+            DonationApi api = new DonationApi(stubApi.getUrl(), "loadtest", 64, Duration.ofSeconds(5), Duration.ofSeconds(10), false,
+                    new CircuitBreaker("donation_api", 5, Duration.ofSeconds(10)));
+            StateStore store = new StateStore(folder, args.partitions, Duration.ofSeconds(5));
+            store.setMessage(VERIFY_MESSAGE);
+            DiscordActions actions = new DiscordActions(client, 4, 5, Duration.ofMillis(100), Duration.ofSeconds(5), Duration.ofSeconds(10));
+            DeferredVerifications deferred = new DeferredVerifications(folder, Duration.ofSeconds(5));
+            LoveTropicsListener listener = new LoveTropicsListener(api, new DonorIndex(api, 500), cache(), cache(),
+                    new UserLanes(args.lanes, Duration.ofSeconds(60)), actions, store, deferred, 25);
+            deferred.start(Duration.ofSeconds(5), 8, listener::completeDeferred, api::isUnavailable);
+            
+            EventPipeline<Timed<ReactionAddEvent>> reactionPipeline = new EventPipeline<>("reaction", args.maxEvents, args.queueSize, EventPipeline.Overflow.DROP_OLDEST);
+            EventPipeline<Timed<MessageCreateEvent>> messagePipeline = new EventPipeline<>("message", args.maxEvents, args.queueSize, EventPipeline.Overflow.DROP_OLDEST);
+            UnicastProcessor<Timed<ReactionAddEvent>> reactionSource = UnicastProcessor.create();
+            UnicastProcessor<Timed<MessageCreateEvent>> messageSource = UnicastProcessor.create();
+            reactions = reactionSource.sink();
+            messages = messageSource.sink();
+            reactionPipeline.run(reactionSource, t -> record(t, listener.onReactAdd(t.event))).subscribe();
+            messagePipeline.run(messageSource, t -> record(t, listener.onMessage(t.event))).subscribe();
+            
+            MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+            Disposable heapSampler = Flux.interval(Duration.ofMillis(250))
+                    .subscribe($ -> peakHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max));
+            
+            System.out.printf("Starting %d users/s for %ds against %s%n", args.rate, args.duration, stubApi.getUrl());
+            long start = System.nanoTime();
+            int users = args.rate * args.duration;
+            Flux.interval(Duration.ofNanos(1_000_000_000L / args.rate))
+                    .take(users)
+                    .flatMap(i -> user(i.intValue()), Integer.MAX_VALUE)
+                    .then()
+                    .block();
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            heapSampler.dispose();
+            store.flush();
+            
+            report(users, elapsed, stubApi, reactionPipeline, messagePipeline, store, deferred);
+        } finally {
+            stubApi.stop();
+            FileUtils.deleteDirectory(folder);
+        }
+    }
+    
+    private static <K> DonationCache<K> cache() {
+        return new DonationCache<>(10000, Duration.ofSeconds(60), Duration.ofSeconds(10), Duration.ofSeconds(5));
+    }
+    
+    private <E> Mono<?> record(Timed<E> timed, Mono<?> handler) {
+        return handler.doFinally($ -> {
+            int i = samples.getAndIncrement();
+            if (i < latencies.length) {
+                latencies[i] = System.nanoTime() - timed.emittedAt;
+            }
+            timed.done.run();
+        });
+    }
+    
+    /**
+     * One synthetic user: reacts, waits, optionally sends a wrong email and waits again, then sends
+     * the right email. Each step waits for the bot to finish handling the previous one.
+     */
+    private Mono<Void> user(int n) {
+        User user = stub(User.class);
+        Snowflake id = Snowflake.of(USER_BASE + n);
+        when(user.getId()).thenReturn(id);
+        when(user.getUsername()).thenReturn("user" + n);
+        when(user.getDiscriminator()).thenReturn("0001");
+        PrivateChannel dm = stub(PrivateChannel.class);
+        when(dm.getId()).thenReturn(Snowflake.of(CHANNEL_BASE + n));
+        when(dm.createMessage(anyString())).thenReturn(discordDelay(Mono.just(reply)));
+        when(user.getPrivateChannel()).thenReturn(Mono.just(dm));
+        
+        ReactionAddEvent reaction = stub(ReactionAddEvent.class);
+        when(reaction.getClient()).thenReturn(client);
+        when(reaction.getMessageId()).thenReturn(VERIFY_MESSAGE);
+        when(reaction.getEmoji()).thenReturn(REACT);
+        when(reaction.getUserId()).thenReturn(id);
+        when(reaction.getUser()).thenReturn(Mono.just(user));
+        
+        Mono<Void> ret = emit(reactions, reaction).then(think());
+        if (ThreadLocalRandom.current().nextDouble() < args.retryRate) {
+            ret = ret.then(Mono.defer(() -> emit(messages, message(user, dm, "user" + n + "@exampel.com")))).then(think());
+        }
+        return ret.then(Mono.defer(() -> emit(messages, message(user, dm, "user" + n + "@example.com"))))
+                .timeout(Duration.ofMinutes(1), Mono.empty());
+    }
+    
+    private MessageCreateEvent message(User author, PrivateChannel dm, String content) {
+        Message message = stub(Message.class);
+        when(message.getAuthor()).thenReturn(Optional.of(author));
+        when(message.getChannel()).thenReturn(Mono.<MessageChannel>just(dm));
+        when(message.getContent()).thenReturn(Optional.of(content));
+        MessageCreateEvent event = stub(MessageCreateEvent.class);
+        when(event.getMessage()).thenReturn(message);
+        return event;
+    }
+    
+    private Mono<Void> think() {
+        return args.thinkTime > 0 ? Mono.delay(Duration.ofMillis(ThreadLocalRandom.current().nextLong(args.thinkTime + 1))).then() : Mono.empty();
+    }
+    
+    private static <E> Mono<Void> emit(FluxSink<Timed<E>> sink, E event) {
+        return Mono.create(done -> sink.next(new Timed<>(event, done::success)));
+    }
+    
+    private void report(int users, double elapsed, StubDonationApi stubApi, EventPipeline<?> reactionPipeline, EventPipeline<?> messagePipeline, StateStore store, DeferredVerifications deferred) {
+        int count = Math.min(samples.get(), latencies.length);
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        long handled = reactionPipeline.getHandled() + messagePipeline.getHandled();
+        
+        System.out.println();
+        System.out.printf("Users:            %d in %.1fs%n", users, elapsed);
+        System.out.printf("Events handled:   %d (%.0f/s), dropped %d%n", handled, handled / elapsed, reactionPipeline.getDropped() + messagePipeline.getDropped());
+        System.out.printf("Latency p50:      %.1f ms%n", percentile(sorted, 0.50));
+        System.out.printf("Latency p99:      %.1f ms%n", percentile(sorted, 0.99));
+        System.out.printf("Latency p99.9:    %.1f ms%n", percentile(sorted, 0.999));
+        System.out.printf("Latency max:      %.1f ms%n", count == 0 ? 0 : sorted[count - 1] / 1e6);
+        System.out.printf("API requests:     %d (%d failed)%n", stubApi.getRequests(), stubApi.getErrors());
+        System.out.printf("Save requests:    %d%n", Metrics.counter("dv_save_requests_total", "").get());
+        System.out.printf("Snapshot writes:  %d%n", Metrics.histogram("dv_save_write_seconds", "").getCount());
+        System.out.printf("Journal appends:  %d%n", Metrics.counter("dv_journal_appends_total", "").get());
+        System.out.printf("Users stored:     %d in %d partitions%n", store.size(), store.getPartitionCount());
+        System.out.printf("Still deferred:   %d%n", deferred.size());
+        System.out.printf("Peak heap:        %.1f MB%n", peakHeap.get() / 1e6);
+    }
+    
+    private static double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int i = (int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1);
+        return sorted[Math.max(0, i)] / 1e6;
+    }
+}
@@ -0,0 +1,185 @@
+package com.lovetropics.donations;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for the donation API. Users are identified by the number in their synthetic
+ * email ({@code user123@example.com}) or Discord name ({@code user123#0001}), and their totals are
+ * derived from that number, so the same user always gets the same answer.
+ * <p>
+ * The donation list served at /donations is empty until donations are added with
+ * {@link #addDonation(Donation)}.
+ * <p>
+ * Responses are delayed on a scheduler rather than by sleeping, so latency does not tie up threads.
+ */
+public class StubDonationApi {
+    
+    private static final Gson GSON = new Gson();
+    
+    private static final Pattern USER_NUMBER = Pattern.compile("^user(\\d+)(@example\\.com|#\\d{4})$");
+    
+    private final HttpServer server;
+    private final ScheduledExecutorService scheduler;
+    private final long latencyMillis;
+    private final double errorRate;
+    private final double linkedRate;
+    
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    
+    private final NavigableMap<Integer, Donation> donations = new ConcurrentSkipListMap<>();
+    private final List<Integer> donationQueries = new CopyOnWriteArrayList<>();
+    
+    /**
+     * @param latencyMillis Mean response latency, actual latency is uniformly spread from half to one and a half times this
+     * @param errorRate Fraction of requests answered with a 500
+     * @param linkedRate Fraction of users whose Discord account is linked to their donations
+     */
+    public StubDonationApi(long latencyMillis, double errorRate, double linkedRate) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.errorRate = errorRate;
+        this.linkedRate = linkedRate;
+        this.scheduler = Executors.newScheduledThreadPool(4, new ThreadFactoryBuilder().setNameFormat("Stub API %d").setDaemon(true).build());
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.server.setExecutor(scheduler);
+        this.server.createContext("/donor/total", exchange -> handle(exchange, "email", false));
+        this.server.createContext("/donors/fromdiscord", exchange -> handle(exchange, "discord_id", true));
+        this.server.createContext("/donations", this::handleDonations);
+        this.server.start();
+    }
+    
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+    
+    public long getRequests() {
+        return requests.sum();
+    }
+    
+    public long getErrors() {
+        return errors.sum();
+    }
+    
+    public void addDonation(Donation donation) {
+        donations.put(donation.getId(), donation);
+    }
+    
+    /**
+     * @return The "after" parameter of every request to /donations so far, in order
+     */
+    public List<Integer> getDonationQueries() {
+        return new ArrayList<>(donationQueries);
+    }
+    
+    public void stop() {
+        server.stop(0);
+        scheduler.shutdownNow();
+    }
+    
+    /**
+     * @return The total donated by this synthetic user, 0 for every tenth user
+     */
+    public static double totalFor(int user) {
+        return user % 10 == 0 ? 0 : (user % 7 + 1) * 10;
+    }
+    
+    private void handle(HttpExchange exchange, String param, boolean discord) {
+        requests.increment();
+        long delay = latencyMillis / 2 + (latencyMillis > 0 ? ThreadLocalRandom.current().nextLong(latencyMillis + 1) : 0);
+        scheduler.schedule(() -> {
+            try {
+                if (ThreadLocalRandom.current().nextDouble() < errorRate) {
+                    errors.increment();
+                    respond(exchange, 500, "{\"error\":\"stub failure\"}");
+                    return;
+                }
+                int user = parseUser(exchange.getRequestURI().getRawQuery(), param);
+                double total = user < 0 ? 0 : totalFor(user);
+                if (discord && (user < 0 || (user % 100) >= linkedRate * 100)) {
+                    total = 0;
+                }
+                if (total <= 0) {
+                    respond(exchange, 404, "{\"error\":\"not found\"}");
+                } else {
+                    respond(exchange, 200, "{\"total\":" + total + "}");
+                }
+            } catch (IOException e) {
+                exchange.close();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+    
+    private void handleDonations(HttpExchange exchange) {
+        requests.increment();
+        String query = exchange.getRequestURI().getRawQuery();
+        int after = Integer.parseInt(param(query, "after", "0"));
+        int limit = Integer.parseInt(param(query, "limit", "100"));
+        donationQueries.add(after);
+        Donation[] page = donations.tailMap(after, false).values().stream().limit(limit).toArray(Donation[]::new);
+        scheduler.schedule(() -> {
+            try {
+                respond(exchange, 200, GSON.toJson(page));
+            } catch (IOException e) {
+                exchange.close();
+            }
+        }, latencyMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    private static String param(String query, String name, String orElse) {
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0 && pair.substring(0, eq).equals(name)) {
+                    return pair.substring(eq + 1);
+                }
+            }
+        }
+        return orElse;
+    }
+    
+    private static int parseUser(String query, String param) throws UnsupportedEncodingException {
+        if (query == null) {
+            return -1;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0 && pair.substring(0, eq).equals(param)) {
+                Matcher matcher = USER_NUMBER.matcher(URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8.name()));
+                return matcher.matches() ? Integer.parseInt(matcher.group(1)) : -1;
+            }
+        }
+        return -1;
+    }
+    
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+        exchange.close();
+    }
+}
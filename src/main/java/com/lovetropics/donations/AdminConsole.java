@@ -0,0 +1,98 @@
+package com.lovetropics.donations;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Reads admin commands from a stream, one per line, and runs them on a dedicated daemon thread. The
+ * thread blocks on the next line instead of polling, and stops once the stream is closed.
+ * <p>
+ * Commands are registered by name. Words after the name are passed to the command as arguments.
+ */
+@Slf4j
+public class AdminConsole {
+    
+    @FunctionalInterface
+    public interface Command {
+        
+        void run(String[] args, PrintStream out) throws Exception;
+    }
+    
+    @RequiredArgsConstructor
+    private static class Entry {
+        final String usage;
+        final String description;
+        final Command command;
+    }
+    
+    private final InputStream in;
+    private final PrintStream out;
+    private final Map<String, Entry> commands = new TreeMap<>();
+    
+    public AdminConsole(InputStream in, PrintStream out) {
+        this.in = in;
+        this.out = out;
+        register("help", "help", "Lists all commands", (args, o) -> {
+            for (Entry entry : commands.values()) {
+                o.println(String.format("  %-24s %s", entry.usage, entry.description));
+            }
+        });
+    }
+    
+    /**
+     * @param usage The name of the command followed by its arguments, as shown by "help"
+     */
+    public AdminConsole register(String name, String usage, String description, Command command) {
+        commands.put(name, new Entry(usage, description, command));
+        return this;
+    }
+    
+    public void start() {
+        Thread thread = new Thread(this::run, "Admin Console");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    private void run() {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                execute(line);
+            }
+        } catch (IOException e) {
+            log.error("Failed to read admin console input", e);
+        }
+        log.info("Admin console input closed");
+    }
+    
+    /**
+     * Runs a single command line. Errors are printed rather than thrown.
+     */
+    public void execute(String line) {
+        String[] words = line.trim().split("\\s+");
+        if (words[0].isEmpty()) {
+            return;
+        }
+        Entry entry = commands.get(words[0]);
+        if (entry == null) {
+            out.println("Unknown command: " + words[0] + ", try \"help\"");
+            return;
+        }
+        try {
+            entry.command.run(Arrays.copyOfRange(words, 1, words.length), out);
+        } catch (Exception e) {
+            log.error("Admin command failed: {}", line, e);
+            out.println("Command failed: " + e);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.lovetropics.donations;
+
+import java.time.Duration;
+
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Mono;
+
+/**
+ * Fails calls fast while a dependency is unhealthy, instead of letting every caller wait for its own
+ * timeout.
+ * <p>
+ * After {@code failureThreshold} failures in a row the breaker opens, and calls fail immediately
+ * with {@link OpenException}. Once {@code openDuration} has passed a single trial call is let through.
+ * If it succeeds the breaker closes again, otherwise it stays open for another {@code openDuration}.
+ */
+@Slf4j
+public class CircuitBreaker {
+    
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN,
+        ;
+    }
+    
+    public static class OpenException extends RuntimeException {
+        
+        private static final long serialVersionUID = 1L;
+        
+        public OpenException(String name) {
+            super("Circuit breaker " + name + " is open", null, false, false);
+        }
+    }
+    
+    private final String name;
+    private final int failureThreshold;
+    private final long openNanos;
+    
+    private final Metrics.Counter rejected;
+    
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+    private boolean trialRunning;
+    
+    public CircuitBreaker(String name, int failureThreshold, Duration openDuration) {
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.openNanos = openDuration.toNanos();
+        this.rejected = Metrics.counter("dv_circuit_rejected_total", "Calls failed fast by an open circuit breaker", "name", name);
+        Metrics.gauge("dv_circuit_state", "State of the circuit breaker, 0 = closed, 1 = open, 2 = half open", () -> getState().ordinal(), "name", name);
+    }
+    
+    /**
+     * Runs {@code call} if the breaker allows it, and records whether it succeeded. Completing empty
+     * counts as success.
+     */
+    public <T> Mono<T> protect(Mono<T> call) {
+        return Mono.defer(() -> {
+            if (!tryAcquire()) {
+                rejected.increment();
+                return Mono.error(new OpenException(name));
+            }
+            return call
+                    .doOnSuccess($ -> onSuccess())
+                    .doOnError($ -> onFailure())
+                    .doOnCancel(this::onCancel);
+        });
+    }
+    
+    private synchronized boolean tryAcquire() {
+        switch (state) {
+            case OPEN:
+                if (System.nanoTime() - openedAt < openNanos) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                return tryTrial();
+            case HALF_OPEN:
+                return tryTrial();
+            default:
+                return true;
+        }
+    }
+    
+    /**
+     * Lets one call through while half open, to find out whether the API is back.
+     */
+    private boolean tryTrial() {
+        if (trialRunning) {
+            return false;
+        }
+        trialRunning = true;
+        return true;
+    }
+    
+    private synchronized void onSuccess() {
+        failures = 0;
+        trialRunning = false;
+        if (state != State.CLOSED) {
+            log.info("Circuit breaker {} closed", name);
+            state = State.CLOSED;
+        }
+    }
+    
+    private synchronized void onFailure() {
+        trialRunning = false;
+        if (state == State.HALF_OPEN || ++failures >= failureThreshold) {
+            if (state == State.CLOSED) {
+                log.warn("Circuit breaker {} opened after {} failures in a row", name, failures);
+            }
+            state = State.OPEN;
+            openedAt = System.nanoTime();
+        }
+    }
+    
+    private synchronized void onCancel() {
+        trialRunning = false;
+    }
+    
+    public synchronized State getState() {
+        return state;
+    }
+    
+    /**
+     * @return True if calls are currently being failed fast
+     */
+    public synchronized boolean isOpen() {
+        return state == State.OPEN && System.nanoTime() - openedAt < openNanos;
+    }
+}
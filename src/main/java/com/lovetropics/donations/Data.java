@@ -0,0 +1,19 @@
+package com.lovetropics.donations;
+
+import discord4j.core.object.util.Snowflake;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+import lombok.Value;
+import lombok.experimental.NonFinal;
+
+/**
+ * Everything persisted to data.json. Serialized by {@link DataTypeAdapter}.
+ */
+@Value
+@RequiredArgsConstructor
+public class Data {
+    @NonFinal
+    @Setter
+    volatile Snowflake message;
+    UserStore users = new UserStore();
+}
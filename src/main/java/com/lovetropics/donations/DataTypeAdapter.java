@@ -0,0 +1,185 @@
+package com.lovetropics.donations;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.lovetropics.donations.UserStore.State;
+
+/**
+ * Keeps data.json in the same layout as when {@link Data} held one map per field, keyed by user ID.
+ * Maps written as arrays of key/value pairs are also accepted.
+ * <p>
+ * Each distinct email is written once to the "emails" list, and users refer to it by its position
+ * in that list, counting from 1. Emails written inline as strings, as older versions did, are also
+ * accepted.
+ * <p>
+ * Reads and writes straight from and to the stream, without building a tree for the whole file.
+ */
+public class DataTypeAdapter extends TypeAdapter<Data> {
+    
+    private interface EntryReader {
+        
+        void read(UserStore users, long id, JsonReader in) throws IOException;
+    }
+    
+    private interface EntryWriter {
+        
+        void write(JsonWriter out, long id, State state, int verifiedEmail, int[] attemptedEmails, int resets) throws IOException;
+    }
+    
+    private final SnowflakeTypeAdapter snowflakes = new SnowflakeTypeAdapter();
+
+    @Override
+    public void write(JsonWriter out, Data src) throws IOException {
+        if (src == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        if (src.getMessage() != null) {
+            out.name("message");
+            snowflakes.write(out, src.getMessage());
+        }
+        // Only the copy is taken under the lock, so the store is not held up while writing to disk
+        UserStore.Snapshot users = src.getUsers().snapshot();
+        out.name("emails").beginArray();
+        for (int email = 1; email <= users.emailCount(); email++) {
+            out.value(users.getEmail(email));
+        }
+        out.endArray();
+        writeMap(out, "userStates", users, (o, id, state, verifiedEmail, attempted, resets) -> {
+            if (state != null) {
+                o.name(Long.toUnsignedString(id)).value(state.name());
+            }
+        });
+        writeMap(out, "verifiedEmails", users, (o, id, state, verifiedEmail, attempted, resets) -> {
+            if (verifiedEmail != EmailTable.NONE) {
+                o.name(Long.toUnsignedString(id)).value(verifiedEmail);
+            }
+        });
+        writeMap(out, "attemptedEmails", users, (o, id, state, verifiedEmail, attempted, resets) -> {
+            if (attempted.length > 0) {
+                o.name(Long.toUnsignedString(id)).beginArray();
+                for (int email : attempted) {
+                    o.value(email);
+                }
+                o.endArray();
+            }
+        });
+        writeMap(out, "resets", users, (o, id, state, verifiedEmail, attempted, resets) -> {
+            if (resets != 0) {
+                o.name(Long.toUnsignedString(id)).value(resets);
+            }
+        });
+        out.endObject();
+    }
+    
+    private static void writeMap(JsonWriter out, String name, UserStore.Snapshot users, EntryWriter writer) throws IOException {
+        out.name(name).beginObject();
+        try {
+            users.forEach((id, state, verifiedEmail, attempted, resets) -> {
+                try {
+                    writer.write(out, id, state, verifiedEmail, attempted, resets);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        out.endObject();
+    }
+
+    @Override
+    public Data read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        Data ret = new Data();
+        UserStore users = ret.getUsers();
+        List<String> emails = new ArrayList<>();
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "message":
+                    ret.setMessage(snowflakes.read(in));
+                    break;
+                case "userStates":
+                    readMap(in, users, (u, id, value) -> u.setState(id, State.valueOf(value.nextString())));
+                    break;
+                case "emails":
+                    in.beginArray();
+                    while (in.hasNext()) {
+                        emails.add(in.nextString());
+                    }
+                    in.endArray();
+                    break;
+                case "verifiedEmails":
+                    readMap(in, users, (u, id, value) -> u.setVerifiedEmail(id, readEmail(value, emails)));
+                    break;
+                case "attemptedEmails":
+                    readMap(in, users, (u, id, value) -> {
+                        value.beginArray();
+                        while (value.hasNext()) {
+                            u.addAttemptedEmail(id, readEmail(value, emails));
+                        }
+                        value.endArray();
+                    });
+                    break;
+                case "resets":
+                    readMap(in, users, (u, id, value) -> u.setResets(id, value.nextInt()));
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return ret;
+    }
+    
+    private static String readEmail(JsonReader in, List<String> emails) throws IOException {
+        if (in.peek() == JsonToken.STRING) {
+            return in.nextString();
+        }
+        int email = in.nextInt();
+        if (email < 1 || email > emails.size()) {
+            throw new JsonParseException("Unknown email " + email + " at " + in.getPath());
+        }
+        return emails.get(email - 1);
+    }
+    
+    private static void readMap(JsonReader in, UserStore users, EntryReader reader) throws IOException {
+        switch (in.peek()) {
+            case NULL:
+                in.nextNull();
+                break;
+            case BEGIN_OBJECT:
+                in.beginObject();
+                while (in.hasNext()) {
+                    reader.read(users, Long.parseUnsignedLong(in.nextName()), in);
+                }
+                in.endObject();
+                break;
+            case BEGIN_ARRAY:
+                in.beginArray();
+                while (in.hasNext()) {
+                    in.beginArray();
+                    long id = in.nextLong();
+                    reader.read(users, id, in);
+                    in.endArray();
+                }
+                in.endArray();
+                break;
+            default:
+                throw new JsonParseException("Expected a map at " + in.getPath() + " but found " + in.peek());
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.lovetropics.donations;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+import com.google.common.collect.Maps;
+import com.google.gson.Gson;
+
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Email verifications which could not be checked because the donation API was unavailable. Kept in
+ * deferred.json so they survive a restart, and retried periodically once the API is healthy.
+ * <p>
+ * Each user has at most one entry, a newer email replaces the older one.
+ */
+@Slf4j
+public class DeferredVerifications {
+    
+    @Value
+    public static class Entry {
+        long user;
+        String email;
+        long queuedAt;
+    }
+    
+    private static final String FILE = "deferred.json";
+    
+    private static final Metrics.Counter QUEUED = Metrics.counter("dv_deferred_verifications_total", "Verifications deferred or completed after the donation API was unavailable", "result", "queued");
+    private static final Metrics.Counter COMPLETED = Metrics.counter("dv_deferred_verifications_total", "Verifications deferred or completed after the donation API was unavailable", "result", "completed");
+    
+    private final SaveHelper<Entry[]> saveHelper;
+    private final Duration saveDelay;
+    private final Map<Long, Entry> entries;
+    private final AtomicBoolean draining = new AtomicBoolean();
+    
+    public DeferredVerifications(File folder, Duration saveDelay) {
+        this.saveHelper = new SaveHelper<>(folder, new Gson(), new Entry[0]);
+        this.saveDelay = saveDelay;
+        this.entries = Maps.newConcurrentMap();
+        for (Entry entry : saveHelper.fromJson(FILE, Entry[].class)) {
+            entries.put(entry.getUser(), entry);
+        }
+        if (!entries.isEmpty()) {
+            log.info("Loaded {} deferred verifications", entries.size());
+        }
+        Metrics.gauge("dv_deferred_verifications", "Verifications waiting for the donation API to recover", entries::size);
+    }
+    
+    public void add(long user, String email) {
+        entries.put(user, new Entry(user, email, System.currentTimeMillis()));
+        QUEUED.increment();
+        save();
+    }
+    
+    private void save() {
+        saveHelper.writeLater(FILE, saveDelay, () -> saveHelper.writeJson(FILE, entries.values().toArray(new Entry[0])));
+    }
+    
+    /**
+     * Drains the queue once every {@code interval}, unless {@code unavailable} says the API is still down.
+     *
+     * @param handler Completes the verification. Entries are removed once it succeeds, and kept for the next drain if it fails.
+     */
+    public Disposable start(Duration interval, int concurrency, Function<Entry, Mono<?>> handler, BooleanSupplier unavailable) {
+        return Flux.interval(interval)
+                .onBackpressureDrop()
+                .filter($ -> !entries.isEmpty() && !unavailable.getAsBoolean())
+                .concatMap($ -> drain(concurrency, handler), 1)
+                .subscribe();
+    }
+    
+    private Mono<Void> drain(int concurrency, Function<Entry, Mono<?>> handler) {
+        if (!draining.compareAndSet(false, true)) {
+            return Mono.empty();
+        }
+        List<Entry> snapshot = new ArrayList<>(entries.values());
+        log.info("Retrying {} deferred verifications", snapshot.size());
+        return Flux.fromIterable(snapshot)
+                .flatMap(entry -> handler.apply(entry)
+                        .then(Mono.fromRunnable(() -> {
+                            // Only if the user has not queued another email in the meantime
+                            if (entries.remove(entry.getUser(), entry)) {
+                                COMPLETED.increment();
+                                save();
+                            }
+                        }))
+                        .onErrorResume(t -> {
+                            log.debug("Deferred verification of user {} failed again: {}", entry.getUser(), t.toString());
+                            return Mono.empty();
+                        }), concurrency)
+                .then()
+                .doFinally($ -> draining.set(false));
+    }
+    
+    public int size() {
+        return entries.size();
+    }
+    
+    /**
+     * Writes any pending changes immediately. Call this before shutdown.
+     */
+    public void flush() {
+        saveHelper.flush();
+    }
+}
@@ -0,0 +1,414 @@
+package com.lovetropics.donations;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Maps;
+
+import discord4j.core.DiscordClient;
+import discord4j.core.object.entity.Message;
+import discord4j.core.object.entity.MessageChannel;
+import discord4j.core.object.entity.User;
+import discord4j.core.object.util.Snowflake;
+import discord4j.rest.http.client.ClientException;
+import io.netty.handler.codec.http.HttpHeaders;
+import lombok.RequiredArgsConstructor;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Queues outgoing role grants and messages by the Discord rate limit bucket of their route, so that
+ * a burst of verifications is spread out instead of running into 429s.
+ * <p>
+ * Role grants share the bucket of their guild and messages the bucket of their channel. Each bucket
+ * lets a few requests run at once, halves that after a 429 and holds everything back until the
+ * reset time Discord sent with it, then grows again with each success. Grants of a role which is
+ * already queued for a member are merged into the queued one. Every attempt has a timeout, and
+ * failed attempts give up their place in the bucket while waiting to be retried with jittered backoff.
+ */
+@Slf4j
+public class DiscordActions {
+    
+    /**
+     * The REST requests made by this class, so that tests can run them against a fake endpoint.
+     */
+    interface Rest {
+        
+        Mono<Void> addRole(Snowflake guild, Snowflake member, Snowflake role);
+        
+        Mono<Void> removeRole(Snowflake guild, Snowflake member, Snowflake role);
+        
+        Mono<Message> createMessage(MessageChannel channel, String content);
+        
+        Mono<Message> createDirectMessage(Snowflake user, String content);
+    }
+    
+    @RequiredArgsConstructor
+    private static class ClientRest implements Rest {
+        
+        private final DiscordClient client;
+        
+        @Override
+        public Mono<Void> addRole(Snowflake guild, Snowflake member, Snowflake role) {
+            return client.getMemberById(guild, member).flatMap(m -> m.addRole(role));
+        }
+        
+        @Override
+        public Mono<Void> removeRole(Snowflake guild, Snowflake member, Snowflake role) {
+            return client.getMemberById(guild, member).flatMap(m -> m.removeRole(role));
+        }
+        
+        @Override
+        public Mono<Message> createMessage(MessageChannel channel, String content) {
+            return channel.createMessage(content);
+        }
+        
+        @Override
+        public Mono<Message> createDirectMessage(Snowflake user, String content) {
+            return client.getUserById(user)
+                    .flatMap(User::getPrivateChannel)
+                    .flatMap(c -> c.createMessage(content));
+        }
+    }
+    
+    @Value
+    private static class RoleGrant {
+        long guild;
+        long member;
+        long role;
+    }
+    
+    private static final Metrics.Histogram ADD_ROLE_LATENCY = Metrics.histogram("dv_discord_request_seconds", "Time taken by Discord REST requests, per attempt", "action", "add_role");
+    private static final Metrics.Histogram REMOVE_ROLE_LATENCY = Metrics.histogram("dv_discord_request_seconds", "Time taken by Discord REST requests, per attempt", "action", "remove_role");
+    private static final Metrics.Histogram SEND_MESSAGE_LATENCY = Metrics.histogram("dv_discord_request_seconds", "Time taken by Discord REST requests, per attempt", "action", "send_message");
+    private static final Metrics.Histogram SEND_DM_LATENCY = Metrics.histogram("dv_discord_request_seconds", "Time taken by Discord REST requests, per attempt", "action", "send_dm");
+    private static final Metrics.Histogram QUEUE_LATENCY = Metrics.histogram("dv_discord_queue_seconds", "Time Discord requests spent waiting for their rate limit bucket");
+    
+    private final Rest rest;
+    private final int maxRetries;
+    private final Duration baseBackoff;
+    private final Duration maxBackoff;
+    private final Duration requestTimeout;
+    
+    private final LoadingCache<Long, RateLimitBucket> guildBuckets;
+    private final LoadingCache<Long, RateLimitBucket> channelBuckets;
+    private final ConcurrentMap<RoleGrant, Mono<Void>> pendingGrants = Maps.newConcurrentMap();
+    
+    private final AtomicInteger queued = new AtomicInteger();
+    private final LongAdder executed = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder dequeued = new LongAdder();
+    private final LongAdder totalQueueNanos = new LongAdder();
+    private final AtomicLong maxQueueNanos = new AtomicLong();
+    
+    /**
+     * @param concurrency Most requests to run at once in one bucket, while it is not being rate limited
+     * @param requestTimeout How long a single attempt may take before it is given up on
+     */
+    public DiscordActions(DiscordClient client, int concurrency, int maxRetries, Duration baseBackoff, Duration maxBackoff, Duration requestTimeout) {
+        this(new ClientRest(client), concurrency, maxRetries, baseBackoff, maxBackoff, requestTimeout);
+    }
+    
+    DiscordActions(Rest rest, int concurrency, int maxRetries, Duration baseBackoff, Duration maxBackoff, Duration requestTimeout) {
+        this.rest = rest;
+        this.maxRetries = maxRetries;
+        this.baseBackoff = baseBackoff;
+        this.maxBackoff = maxBackoff;
+        this.requestTimeout = requestTimeout;
+        // Buckets of channels and guilds which have gone quiet are dropped, a later request starts afresh
+        CacheLoader<Long, RateLimitBucket> loader = CacheLoader.from($ -> new RateLimitBucket(concurrency));
+        this.guildBuckets = CacheBuilder.newBuilder().expireAfterAccess(10, TimeUnit.MINUTES).build(loader);
+        this.channelBuckets = CacheBuilder.newBuilder().expireAfterAccess(10, TimeUnit.MINUTES).build(loader);
+        
+        Metrics.gauge("dv_discord_queued", "Discord requests waiting for their rate limit bucket", queued::get);
+        Metrics.counter("dv_discord_retries_total", "Discord requests retried after a 429, server error or timeout", retries::sum);
+        Metrics.counter("dv_discord_rate_limited_total", "Discord requests rejected with 429", rateLimited::sum);
+        Metrics.counter("dv_discord_timeouts_total", "Discord request attempts which timed out", timeouts::sum);
+        Metrics.counter("dv_discord_failures_total", "Discord requests which failed after all retries", failed::sum);
+    }
+    
+    public Mono<Void> addRole(Snowflake guild, Snowflake member, Snowflake role) {
+        RoleGrant grant = new RoleGrant(guild.asLong(), member.asLong(), role.asLong());
+        return pendingGrants.computeIfAbsent(grant, g -> enqueue(guildBuckets.getUnchecked(g.getGuild()), ADD_ROLE_LATENCY, true,
+                    () -> rest.addRole(guild, member, role), 0)
+                .doFinally($ -> pendingGrants.remove(g))
+                .cache());
+    }
+    
+    public Mono<Void> removeRole(Snowflake guild, Snowflake member, Snowflake role) {
+        return enqueue(guildBuckets.getUnchecked(guild.asLong()), REMOVE_ROLE_LATENCY, true, () -> rest.removeRole(guild, member, role), 0);
+    }
+    
+    public Mono<Message> sendMessage(MessageChannel channel, String content) {
+        return enqueue(channelBuckets.getUnchecked(channel.getId().asLong()), SEND_MESSAGE_LATENCY, false, () -> rest.createMessage(channel, content), 0);
+    }
+    
+    /**
+     * Sends a message to a user who did not just message us, so there is no channel to reply in yet.
+     * The DM channel is not known up front, so this is bucketed by the user instead.
+     */
+    public Mono<Message> sendDirectMessage(Snowflake user, String content) {
+        return enqueue(channelBuckets.getUnchecked(user.asLong()), SEND_DM_LATENCY, false, () -> rest.createDirectMessage(user, content), 0);
+    }
+    
+    /**
+     * Waits for a place in the bucket and runs one attempt of the request. The place is given up
+     * before waiting to retry, so the backoff of one request does not hold up the rest of the bucket.
+     *
+     * @param idempotent If the request can be sent again after a timeout, when it may have gone through
+     */
+    private <T> Mono<T> enqueue(RateLimitBucket bucket, Metrics.Histogram latency, boolean idempotent, Supplier<Mono<T>> request, int attempt) {
+        return Mono.defer(() -> {
+            long queuedAt = System.nanoTime();
+            queued.incrementAndGet();
+            return bucket.acquire()
+                    .doOnNext($ -> recordQueueLatency(System.nanoTime() - queuedAt))
+                    .doFinally($ -> queued.decrementAndGet())
+                    .flatMap(permit -> latency.time(Mono.defer(request).timeout(requestTimeout))
+                            .doOnSuccess($ -> bucket.succeeded())
+                            .doOnError(t -> {
+                                if (t instanceof TimeoutException) {
+                                    timeouts.increment();
+                                }
+                                if (isRateLimit(t)) {
+                                    rateLimited.increment();
+                                    bucket.rateLimited(retryAfter(((ClientException) t).getHeaders()));
+                                }
+                            })
+                            .doFinally($ -> permit.release()));
+        })
+        .doOnSuccess($ -> executed.increment())
+        .onErrorResume(t -> {
+            if (attempt < maxRetries && isRetryable(t, idempotent)) {
+                retries.increment();
+                Duration backoff = backoff(attempt);
+                log.debug("Retrying Discord request in {}ms after: {}", backoff.toMillis(), t.toString());
+                return Mono.delay(backoff).then(enqueue(bucket, latency, idempotent, request, attempt + 1));
+            }
+            failed.increment();
+            return Mono.error(t);
+        });
+    }
+    
+    private static boolean isRateLimit(Throwable t) {
+        return t instanceof ClientException && ((ClientException) t).getStatus().code() == 429;
+    }
+    
+    private static boolean isRetryable(Throwable t, boolean idempotent) {
+        if (t instanceof ClientException) {
+            int status = ((ClientException) t).getStatus().code();
+            return status == 429 || status >= 500;
+        }
+        return idempotent && t instanceof TimeoutException;
+    }
+    
+    /**
+     * Reads how long to hold back a bucket after a 429, from the headers Discord sent with it.
+     *
+     * @return The delay, or zero if there was none
+     */
+    static Duration retryAfter(HttpHeaders headers) {
+        for (String name : new String[] { "X-RateLimit-Reset-After", "Retry-After" }) {
+            String value = headers.get(name);
+            if (value != null) {
+                try {
+                    return Duration.ofMillis((long) Math.ceil(Double.parseDouble(value) * 1000));
+                } catch (NumberFormatException e) {
+                    log.warn("Invalid {} header: {}", name, value);
+                }
+            }
+        }
+        return Duration.ZERO;
+    }
+    
+    /**
+     * Exponential backoff with "equal jitter": half of the delay is fixed, the other half random.
+     */
+    Duration backoff(int attempt) {
+        long max = Math.min(maxBackoff.toMillis(), baseBackoff.toMillis() << Math.min(attempt, 20));
+        return Duration.ofMillis(max / 2 + ThreadLocalRandom.current().nextLong(max / 2 + 1));
+    }
+    
+    private void recordQueueLatency(long nanos) {
+        QUEUE_LATENCY.observeNanos(nanos);
+        dequeued.increment();
+        totalQueueNanos.add(nanos);
+        maxQueueNanos.accumulateAndGet(nanos, Math::max);
+    }
+    
+    /**
+     * @return The amount of requests waiting for their bucket
+     */
+    public int getQueued() {
+        return queued.get();
+    }
+    
+    public long getExecuted() {
+        return executed.sum();
+    }
+    
+    public long getRetries() {
+        return retries.sum();
+    }
+    
+    public long getRateLimited() {
+        return rateLimited.sum();
+    }
+    
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+    
+    public long getFailed() {
+        return failed.sum();
+    }
+    
+    public Duration getAverageQueueLatency() {
+        long count = dequeued.sum();
+        return Duration.ofNanos(count == 0 ? 0 : totalQueueNanos.sum() / count);
+    }
+    
+    public Duration getMaxQueueLatency() {
+        return Duration.ofNanos(maxQueueNanos.get());
+    }
+    
+    /**
+     * Hands out places to run a request in one rate limit bucket, in the order they were asked for.
+     * The amount of places starts at the maximum, is halved on each 429 and grows back by one with
+     * each success. After a 429 no places are handed out until the reset time has passed.
+     */
+    static class RateLimitBucket {
+        
+        private static final int WAITING = 0, GRANTED = 1, RELEASED = 2, CANCELLED = 3;
+        
+        /**
+         * A place in the queue, which is a place in the bucket once granted. Releasing it more than
+         * once, or after the waiter was cancelled, does nothing.
+         */
+        class Permit {
+            
+            private final MonoSink<Permit> sink;
+            private final AtomicInteger state = new AtomicInteger(WAITING);
+            
+            Permit(MonoSink<Permit> sink) {
+                this.sink = sink;
+            }
+            
+            void release() {
+                if (state.compareAndSet(GRANTED, RELEASED)) {
+                    released();
+                }
+            }
+            
+            private void cancel() {
+                if (state.compareAndSet(WAITING, CANCELLED)) {
+                    synchronized (RateLimitBucket.this) {
+                        waiters.remove(this);
+                    }
+                } else {
+                    // Granted after the subscriber went away
+                    release();
+                }
+            }
+        }
+        
+        private final int maxConcurrency;
+        private final Queue<Permit> waiters = new ArrayDeque<>();
+        private int concurrency;
+        private int inFlight;
+        private long blockedUntil = System.nanoTime();
+        private boolean drainScheduled;
+        
+        RateLimitBucket(int maxConcurrency) {
+            this.maxConcurrency = Math.max(1, maxConcurrency);
+            this.concurrency = this.maxConcurrency;
+        }
+        
+        /**
+         * @return A mono which completes with a place in the bucket once one is free. It must be released.
+         */
+        Mono<Permit> acquire() {
+            return Mono.create(sink -> {
+                Permit permit = new Permit(sink);
+                sink.onCancel(permit::cancel);
+                synchronized (this) {
+                    waiters.add(permit);
+                }
+                drain();
+            });
+        }
+        
+        synchronized void succeeded() {
+            concurrency = Math.min(maxConcurrency, concurrency + 1);
+        }
+        
+        /**
+         * @param retryAfter How long Discord asked to wait before sending anything else in this bucket
+         */
+        synchronized void rateLimited(Duration retryAfter) {
+            concurrency = Math.max(1, concurrency / 2);
+            blockedUntil = Math.max(blockedUntil, System.nanoTime() + retryAfter.toNanos());
+        }
+        
+        synchronized int getConcurrency() {
+            return concurrency;
+        }
+        
+        private void released() {
+            synchronized (this) {
+                inFlight--;
+            }
+            drain();
+        }
+        
+        private void drain() {
+            List<Permit> granted = new ArrayList<>();
+            synchronized (this) {
+                long wait = blockedUntil - System.nanoTime();
+                if (wait > 0) {
+                    if (!drainScheduled && !waiters.isEmpty()) {
+                        drainScheduled = true;
+                        Schedulers.parallel().schedule(() -> {
+                            synchronized (this) {
+                                drainScheduled = false;
+                            }
+                            drain();
+                        }, wait, TimeUnit.NANOSECONDS);
+                    }
+                    return;
+                }
+                while (inFlight < concurrency && !waiters.isEmpty()) {
+                    Permit permit = waiters.poll();
+                    if (permit.state.compareAndSet(WAITING, GRANTED)) {
+                        inFlight++;
+                        granted.add(permit);
+                    }
+                }
+            }
+            // Outside the lock, as the request starts running on this thread
+            for (Permit permit : granted) {
+                permit.sink.success(permit);
+            }
+        }
+    }
+}
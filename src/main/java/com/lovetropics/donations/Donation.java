@@ -0,0 +1,14 @@
+package com.lovetropics.donations;
+
+import com.google.gson.annotations.SerializedName;
+
+import lombok.Value;
+
+@Value
+public class Donation {
+    int id;
+    double amount;
+    @SerializedName("display_name")
+    String name;
+    String email;
+}
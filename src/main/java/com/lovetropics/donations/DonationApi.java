@@ -0,0 +1,174 @@
+package com.lovetropics.donations;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.base.Charsets;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+import discord4j.core.object.entity.User;
+import io.netty.channel.ChannelOption;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+/**
+ * Client for the donation API. One instance should be shared for the lifetime of the bot, so that
+ * connections are pooled and kept alive between lookups.
+ */
+@Slf4j
+public class DonationApi {
+    
+    @Value
+    public static class PoolMetrics {
+        int maxConnections;
+        int openConnections;
+        int activeRequests;
+        long totalRequests;
+        long failedRequests;
+    }
+    
+    /**
+     * The API could not answer, because it failed, timed out, or is being skipped by the circuit
+     * breaker. This does not mean the donor has no donations.
+     */
+    public static class UnavailableException extends RuntimeException {
+        
+        private static final long serialVersionUID = 1L;
+        
+        public UnavailableException(String message) {
+            super(message);
+        }
+        
+        public UnavailableException(Throwable cause) {
+            super("Donation API unavailable: " + cause, cause);
+        }
+    }
+    
+    private static final Gson GSON = new Gson();
+    
+    private static final Metrics.Histogram EMAIL_LATENCY = Metrics.histogram("dv_donation_api_seconds", "Time taken by donation API requests", "endpoint", "donor_total");
+    private static final Metrics.Histogram DISCORD_LATENCY = Metrics.histogram("dv_donation_api_seconds", "Time taken by donation API requests", "endpoint", "from_discord");
+    private static final Metrics.Histogram DONATIONS_LATENCY = Metrics.histogram("dv_donation_api_seconds", "Time taken by donation API requests", "endpoint", "donations");
+    
+    private final HttpClient client;
+    private final CircuitBreaker breaker;
+    private final Duration responseTimeout;
+    private final int maxConnections;
+    
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final AtomicInteger activeRequests = new AtomicInteger();
+    private final LongAdder totalRequests = new LongAdder();
+    private final LongAdder failedRequests = new LongAdder();
+    
+    /**
+     * @param maxConnections Maximum amount of pooled connections, further requests wait for one to be released
+     * @param connectTimeout Timeout for opening a new connection, also used as the timeout to acquire one from the pool
+     * @param responseTimeout Timeout for a whole request, from acquiring a connection to reading the response
+     * @param wiretap If true, logs every byte sent and received. Only useful for debugging.
+     * @param breaker Shared by all requests, so that an outage seen by one lookup fails the others fast
+     */
+    public DonationApi(String api, String key, int maxConnections, Duration connectTimeout, Duration responseTimeout, boolean wiretap, CircuitBreaker breaker) {
+        this.breaker = breaker;
+        this.responseTimeout = responseTimeout;
+        this.maxConnections = maxConnections;
+        this.client = HttpClient.create(ConnectionProvider.fixed("donation-api", maxConnections, connectTimeout.toMillis()))
+                .baseUrl(api)
+                .headers(h -> h.add("Authorization", "Bearer " + key))
+                .keepAlive(true)
+                .tcpConfiguration(tcp -> tcp
+                        .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) connectTimeout.toMillis())
+                        .option(ChannelOption.SO_KEEPALIVE, true)
+                        .doOnConnected(conn -> {
+                            openConnections.incrementAndGet();
+                            conn.onDispose(openConnections::decrementAndGet);
+                        }))
+                .wiretap(wiretap);
+        
+        Metrics.gauge("dv_donation_api_max_connections", "Maximum pooled connections to the donation API", () -> maxConnections);
+        Metrics.gauge("dv_donation_api_open_connections", "Open connections to the donation API", openConnections::get);
+        Metrics.gauge("dv_donation_api_active_requests", "Donation API requests in progress", activeRequests::get);
+        Metrics.counter("dv_donation_api_requests_total", "Donation API requests made", totalRequests::sum);
+        Metrics.counter("dv_donation_api_failures_total", "Donation API requests which failed or timed out", failedRequests::sum);
+    }
+    
+    /**
+     * @return The total donated by this email, or 0 if there are none. Fails with
+     *         {@link UnavailableException} if the API could not be asked.
+     */
+    public Mono<Double> getTotal(String email) {
+        return getTotal("/donor/total?email=" + encode(email), EMAIL_LATENCY)
+                .defaultIfEmpty(0.0);
+    }
+
+    /**
+     * @return The total donated by this Discord user, or empty if their account is not linked
+     */
+    public Mono<Double> getTotal(User user) {
+        return getTotal("/donors/fromdiscord?discord_id=" + encode(user.getUsername() + '#' + user.getDiscriminator()), DISCORD_LATENCY);
+    }
+    
+    /**
+     * @return Up to {@code limit} donations with an ID greater than {@code afterId}, in ascending ID order
+     */
+    public Mono<Donation[]> getDonations(int afterId, int limit) {
+        return client.get()
+                .uri("/donations?after=" + afterId + "&limit=" + limit)
+                .responseSingle((resp, content) -> resp.status() == HttpResponseStatus.OK ? content.asString() : Mono.error(new UnavailableException("Donation API returned " + resp.status())))
+                .map(s -> GSON.fromJson(s, Donation[].class))
+                .transform(request -> instrument(request, DONATIONS_LATENCY));
+    }
+    
+    private Mono<Double> getTotal(String uri, Metrics.Histogram latency) {
+        return client.get()
+                .uri(uri)
+                .responseSingle((resp, content) -> {
+                    if (resp.status() == HttpResponseStatus.OK) {
+                        return content.asString();
+                    }
+                    // Anything other than an outage means there is nothing to find
+                    int status = resp.status().code();
+                    return status == 429 || status >= 500 ? Mono.error(new UnavailableException("Donation API returned " + resp.status())) : Mono.empty();
+                })
+                .map(s -> GSON.fromJson(s, JsonObject.class))
+                .map(json -> json.getAsJsonObject().get("total").getAsDouble())
+                .transform(request -> instrument(request, latency));
+    }
+    
+    private <T> Mono<T> instrument(Mono<T> request, Metrics.Histogram latency) {
+        return breaker.protect(latency.time(request.timeout(responseTimeout))
+                    .doOnSubscribe($ -> {
+                        totalRequests.increment();
+                        activeRequests.incrementAndGet();
+                    })
+                    .doOnError($ -> failedRequests.increment())
+                    .doFinally($ -> activeRequests.decrementAndGet()))
+                .onErrorMap(t -> !(t instanceof UnavailableException), UnavailableException::new);
+    }
+    
+    /**
+     * @return True if requests are currently being failed fast because the API is unhealthy
+     */
+    public boolean isUnavailable() {
+        return breaker.isOpen();
+    }
+    
+    private static String encode(String param) {
+        try {
+            return URLEncoder.encode(param, Charsets.US_ASCII.name());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    public PoolMetrics getMetrics() {
+        return new PoolMetrics(maxConnections, openConnections.get(), activeRequests.get(), totalRequests.sum(), failedRequests.sum());
+    }
+}
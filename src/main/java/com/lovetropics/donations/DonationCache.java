@@ -0,0 +1,113 @@
+package com.lovetropics.donations;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Maps;
+
+import lombok.Value;
+import reactor.core.publisher.Mono;
+
+/**
+ * Caches donation totals in front of the donation API. Totals of zero or less, and empty results,
+ * are kept for a shorter time than positive totals. Concurrent lookups for the same key share one
+ * request.
+ */
+public class DonationCache<K> {
+    
+    @Value
+    private static class Entry {
+        Optional<Double> total;
+        long createdAt;
+        long expiresAt;
+    }
+    
+    private final Cache<K, Entry> cache;
+    private final ConcurrentMap<K, Mono<Optional<Double>>> inFlight = Maps.newConcurrentMap();
+    
+    private final long ttl;
+    private final long negativeTtl;
+    private final long refreshInterval;
+    
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    
+    /**
+     * @param maximumSize Maximum amount of cached totals, least recently used ones are evicted first
+     * @param ttl How long a positive total is cached for
+     * @param negativeTtl How long a missing or zero total is cached for
+     * @param refreshInterval Minimum age of an entry before {@link #refresh(Object)} drops it
+     */
+    public DonationCache(long maximumSize, Duration ttl, Duration negativeTtl, Duration refreshInterval) {
+        this.ttl = ttl.toNanos();
+        this.negativeTtl = negativeTtl.toNanos();
+        this.refreshInterval = refreshInterval.toNanos();
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(Math.max(this.ttl, this.negativeTtl), TimeUnit.NANOSECONDS)
+                .build();
+    }
+    
+    /**
+     * Gets the cached total for this key, or subscribes to {@code loader} if there is none. If a
+     * lookup for this key is already running, waits for its result instead.
+     */
+    public Mono<Double> get(K key, Supplier<Mono<Double>> loader) {
+        Entry entry = cache.getIfPresent(key);
+        if (entry != null && System.nanoTime() - entry.getExpiresAt() < 0) {
+            hits.increment();
+            return Mono.justOrEmpty(entry.getTotal());
+        }
+        misses.increment();
+        return inFlight.computeIfAbsent(key, k -> loader.get()
+                    .map(Optional::of)
+                    .defaultIfEmpty(Optional.empty())
+                    .doOnNext(total -> put(k, total))
+                    .doFinally($ -> inFlight.remove(k))
+                    .cache())
+                .flatMap(Mono::justOrEmpty);
+    }
+    
+    private void put(K key, Optional<Double> total) {
+        long now = System.nanoTime();
+        boolean positive = total.isPresent() && total.get() > 0;
+        cache.put(key, new Entry(total, now, now + (positive ? ttl : negativeTtl)));
+    }
+    
+    /**
+     * Drops the cached total for this key, so the next lookup goes to the API. Entries younger than
+     * the refresh interval are kept, so that spamming retries cannot bypass the cache.
+     */
+    public void refresh(K key) {
+        Entry entry = cache.getIfPresent(key);
+        if (entry != null && System.nanoTime() - entry.getCreatedAt() >= refreshInterval) {
+            cache.invalidate(key);
+        }
+    }
+    
+    public void invalidate(K key) {
+        cache.invalidate(key);
+    }
+    
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+    
+    public long size() {
+        return cache.size();
+    }
+    
+    public long getHits() {
+        return hits.sum();
+    }
+    
+    public long getMisses() {
+        return misses.sum();
+    }
+}
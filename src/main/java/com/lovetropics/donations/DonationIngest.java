@@ -0,0 +1,88 @@
+package com.lovetropics.donations;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Accepts donations pushed to POST /donations, either one {@link Donation} or an array of them, with
+ * the ingest key as a bearer token. New donations are added to the {@link DonorIndex}, and the user
+ * who used that email, if any, is re-verified straight away instead of waiting for them to ask.
+ * <p>
+ * Try it with:
+ * <pre>
+ * curl -H "Authorization: Bearer $KEY" -d '{"id":1,"amount":25,"display_name":"A","email":"a@example.com"}' http://127.0.0.1:8080/donations
+ * </pre>
+ */
+@RequiredArgsConstructor
+@Slf4j
+public class DonationIngest {
+    
+    private static final Gson GSON = new Gson();
+    
+    private static final Metrics.Counter NEW = Metrics.counter("dv_ingest_donations_total", "Donations pushed to the ingest endpoint", "result", "new");
+    private static final Metrics.Counter DUPLICATE = Metrics.counter("dv_ingest_donations_total", "Donations pushed to the ingest endpoint", "result", "duplicate");
+    private static final Metrics.Counter MATCHED = Metrics.counter("dv_ingest_donations_total", "Donations pushed to the ingest endpoint", "result", "matched");
+    
+    private final String key;
+    private final DonorIndex donorIndex;
+    private final StateStore store;
+    private final LoveTropicsListener listener;
+    
+    public void handle(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            exchange.getResponseHeaders().set("Allow", "POST");
+            WebServer.respond(exchange, 405, "text/plain", "Method not allowed");
+            return;
+        }
+        String auth = exchange.getRequestHeaders().getFirst("Authorization");
+        if (auth == null || !MessageDigest.isEqual(("Bearer " + key).getBytes(StandardCharsets.UTF_8), auth.getBytes(StandardCharsets.UTF_8))) {
+            WebServer.respond(exchange, 401, "text/plain", "Unauthorized");
+            return;
+        }
+        Donation[] donations;
+        try (Reader reader = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)) {
+            JsonElement json = new JsonParser().parse(reader);
+            donations = json.isJsonArray() ? GSON.fromJson(json, Donation[].class) : new Donation[] { GSON.fromJson(json, Donation.class) };
+        } catch (JsonParseException | IllegalStateException e) {
+            WebServer.respond(exchange, 400, "text/plain", "Malformed donation: " + e.getMessage());
+            return;
+        }
+        for (Donation donation : donations) {
+            if (donation == null || donation.getId() <= 0 || !Double.isFinite(donation.getAmount())) {
+                WebServer.respond(exchange, 400, "text/plain", "Donations need a positive id and an amount");
+                return;
+            }
+        }
+        
+        int added = 0, matched = 0;
+        for (Donation donation : donations) {
+            if (!donorIndex.add(donation)) {
+                DUPLICATE.increment();
+                continue;
+            }
+            added++;
+            NEW.increment();
+            long user = donation.getEmail() == null ? 0 : store.getUserByEmail(donation.getEmail());
+            if (user != 0) {
+                matched++;
+                MATCHED.increment();
+                listener.reverify(user)
+                        .subscribe(outcome -> log.info("Donation {} matched user {}: {}", donation.getId(), user, outcome));
+            }
+        }
+        WebServer.respond(exchange, 202, "application/json",
+                "{\"added\":" + added + ",\"duplicates\":" + (donations.length - added) + ",\"matched\":" + matched + "}");
+    }
+}
@@ -1,16 +1,30 @@
 package com.lovetropics.donations;
 
-import java.util.Scanner;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 
 import discord4j.core.DiscordClient;
 import discord4j.core.DiscordClientBuilder;
+import discord4j.core.event.domain.guild.MemberJoinEvent;
 import discord4j.core.event.domain.message.MessageCreateEvent;
 import discord4j.core.event.domain.message.ReactionAddEvent;
+import discord4j.rest.request.DefaultRouterFactory;
+import discord4j.rest.request.Router;
+import discord4j.rest.request.RouterFactory;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-import reactor.core.scheduler.Schedulers;
 
 public class DonationVerifier {
     
@@ -26,48 +40,334 @@ public class DonationVerifier {
 
         @Parameter(names = "--mindonation", description = "Minimum donation to be whitelisted, default = 25")
         private int minDonation = 25;
+        
+        @Parameter(names = "--partitions", description = "Amount of partitions to split stored user state into, each with its own data.json and journal. Existing state is moved over when this changes. Default = 1")
+        private int partitions = 1;
+        
+        @Parameter(names = "--shards", description = "Amount of gateway shards to connect in this process. They share one REST client, default = 1")
+        private int shards = 1;
+        
+        @Parameter(names = "--compactdelay", description = "Maximum time in seconds before journaled state changes are folded into data.json, default = 60")
+        private long compactDelay = 60;
+        
+        @Parameter(names = "--ltconnections", description = "Maximum amount of pooled connections to the donation API, default = 16")
+        private int loveTropicsConnections = 16;
+        
+        @Parameter(names = "--ltconnecttimeout", description = "Timeout in milliseconds for connecting to the donation API, default = 5000")
+        private long loveTropicsConnectTimeout = 5000;
+        
+        @Parameter(names = "--lttimeout", description = "Timeout in milliseconds for a donation API request to complete, default = 10000")
+        private long loveTropicsTimeout = 10000;
+        
+        @Parameter(names = "--ltbreakerfailures", description = "Failed donation API requests in a row before failing fast, default = 5")
+        private int loveTropicsBreakerFailures = 5;
+        
+        @Parameter(names = "--ltbreakeropen", description = "Time in seconds to fail fast for before trying the donation API again, default = 30")
+        private long loveTropicsBreakerOpen = 30;
+        
+        @Parameter(names = "--deferredretry", description = "Interval in seconds to retry verifications deferred while the donation API was unavailable, default = 30")
+        private long deferredRetry = 30;
+        
+        @Parameter(names = "--deferredconcurrency", description = "Maximum amount of deferred verifications to retry at once, default = 8")
+        private int deferredConcurrency = 8;
+        
+        @Parameter(names = "--debughttp", description = "Log all traffic to and from the donation API")
+        private boolean debugHttp;
+        
+        @Parameter(names = "--cachesize", description = "Maximum amount of donation totals to cache, default = 10000")
+        private long cacheSize = 10000;
+        
+        @Parameter(names = "--cachettl", description = "Time in seconds to cache donation totals for, default = 60")
+        private long cacheTtl = 60;
+        
+        @Parameter(names = "--cachenegativettl", description = "Time in seconds to cache missing donation totals for, default = 10")
+        private long cacheNegativeTtl = 10;
+        
+        @Parameter(names = "--cacherefresh", description = "Minimum age in seconds of a cached total before a user asking to try again refreshes it, default = 5")
+        private long cacheRefresh = 5;
+        
+        @Parameter(names = "--donorsync", description = "Interval in seconds to sync new donations into the local donor index, 0 to disable, default = 0")
+        private long donorSync = 0;
+        
+        @Parameter(names = "--donorsyncpage", description = "Amount of donations to request per page when syncing the donor index, default = 500")
+        private int donorSyncPage = 500;
+        
+        @Parameter(names = "--maxmessages", description = "Maximum amount of messages to process at once, default = 32")
+        private int maxMessages = 32;
+        
+        @Parameter(names = "--maxreactions", description = "Maximum amount of reactions to process at once, default = 32")
+        private int maxReactions = 32;
+        
+        @Parameter(names = "--queuesize", description = "Maximum amount of events of each type waiting to be processed, default = 10000")
+        private int queueSize = 10000;
+        
+        @Parameter(names = "--overflow", description = "Which event to drop once the queue is full, DROP_NEWEST or DROP_OLDEST, default = DROP_OLDEST")
+        private EventPipeline.Overflow overflow = EventPipeline.Overflow.DROP_OLDEST;
+        
+        @Parameter(names = "--lanes", description = "Amount of lanes to partition users into. Events for one user are handled in order, different lanes run in parallel. Default = 64")
+        private int lanes = 64;
+        
+        @Parameter(names = "--lanetimeout", description = "Time in milliseconds a single event may take before its lane moves on to the next event, default = 60000")
+        private long laneTimeout = 60000;
+        
+        @Parameter(names = "--discordconcurrency", description = "Maximum amount of Discord requests to run at once per rate limit bucket, halved after each 429, default = 4")
+        private int discordConcurrency = 4;
+        
+        @Parameter(names = "--discordretries", description = "Maximum amount of retries for a rate limited or failed Discord request, default = 5")
+        private int discordRetries = 5;
+        
+        @Parameter(names = "--discordbackoff", description = "Initial delay in milliseconds before retrying a Discord request, doubled on each retry, default = 500")
+        private long discordBackoff = 500;
+        
+        @Parameter(names = "--discordmaxbackoff", description = "Maximum delay in milliseconds before retrying a Discord request, default = 30000")
+        private long discordMaxBackoff = 30000;
+        
+        @Parameter(names = "--discordtimeout", description = "Time in milliseconds before a single Discord request attempt is given up on, default = 10000")
+        private long discordTimeout = 10000;
+        
+        @Parameter(names = "--reverifyconcurrency", description = "Maximum amount of users to re-verify at once when running \"reverify\", default = 16")
+        private int reverifyConcurrency = 16;
+        
+        @Parameter(names = "--reconcile", description = "Interval in minutes to check the donor and whitelist roles of every guild member against their state, 0 to disable, default = 60")
+        private long reconcile = 60;
+        
+        @Parameter(names = "--reconcileconcurrency", description = "Maximum amount of members to fix roles for at once while reconciling, default = 8")
+        private int reconcileConcurrency = 8;
+        
+        @Parameter(names = "--reconcileremove", description = "Also remove donor and whitelist roles from members whose state does not warrant them")
+        private boolean reconcileRemove;
+        
+        @Parameter(names = "--shutdowntimeout", description = "Maximum time in seconds to wait for running events to finish when stopping, default = 30")
+        private long shutdownTimeout = 30;
+        
+        @Parameter(names = "--httphost", description = "Address to bind the embedded web server to, default = 127.0.0.1")
+        private String httpHost = "127.0.0.1";
+        
+        @Parameter(names = "--httpport", description = "Port for the embedded web server, default = 8080")
+        private int httpPort = 8080;
+        
+        @Parameter(names = "--metrics", description = "Serve metrics in the Prometheus text format at /metrics on the embedded web server")
+        private boolean metrics;
+        
+        @Parameter(names = "--ingestkey", description = "Bearer token for pushing donations to /donations on the embedded web server. The endpoint is disabled if not set")
+        private String ingestKey;
     }
     
     private static Arguments args;
     
-    public static void main(String[] argv) {        
+    public static void main(String[] argv) throws IOException {        
         args = new Arguments();
         JCommander.newBuilder().addObject(args).build().parse(argv);
         
-        final LoveTropicsListener ltListener = new LoveTropicsListener(args.loveTropicsApi, args.loveTropicsKey, args.minDonation);
+        final CircuitBreaker breaker = new CircuitBreaker("donation_api", args.loveTropicsBreakerFailures, Duration.ofSeconds(args.loveTropicsBreakerOpen));
+        final DonationApi donationApi = new DonationApi(args.loveTropicsApi, args.loveTropicsKey, args.loveTropicsConnections,
+                Duration.ofMillis(args.loveTropicsConnectTimeout), Duration.ofMillis(args.loveTropicsTimeout), args.debugHttp, breaker);
+        final DonorIndex donorIndex = new DonorIndex(donationApi, args.donorSyncPage);
+        // Periodic background work, stopped first on shutdown
+        final Disposable.Composite jobs = Disposables.composite();
+        if (args.donorSync > 0) {
+            jobs.add(donorIndex.start(Duration.ofSeconds(args.donorSync)));
+        }
 
-        DiscordClient client = new DiscordClientBuilder(args.authKey)
-                .build();
+        // Shards only split gateway events. Every shard gets the router built for the first one, so all
+        // REST requests share one set of rate limit buckets whichever shard the event came from.
+        final AtomicReference<Router> router = new AtomicReference<>();
+        final RouterFactory sharedRouter = webClient -> router.updateAndGet(r -> r != null ? r : new DefaultRouterFactory().getRouter(webClient));
+        final List<DiscordClient> shards = new ArrayList<>();
+        for (int i = 0; i < args.shards; i++) {
+            shards.add(new DiscordClientBuilder(args.authKey)
+                    .setShardIndex(i)
+                    .setShardCount(args.shards)
+                    .setRouterFactory(sharedRouter)
+                    .build());
+        }
+        DiscordClient client = shards.get(0);
+        
+        final DiscordActions actions = new DiscordActions(client, args.discordConcurrency, args.discordRetries,
+                Duration.ofMillis(args.discordBackoff), Duration.ofMillis(args.discordMaxBackoff), Duration.ofMillis(args.discordTimeout));
+        final File dataFolder = new File("lovetropics");
+        final StateStore store = new StateStore(dataFolder, args.partitions, Duration.ofSeconds(args.compactDelay));
+        final DonationCache<String> emailTotals = createCache("email");
+        final DonationCache<Long> discordTotals = createCache("discord");
+        final UserLanes lanes = new UserLanes(args.lanes, Duration.ofMillis(args.laneTimeout));
+        final DeferredVerifications deferred = new DeferredVerifications(dataFolder, Duration.ofSeconds(1));
+        final LoveTropicsListener ltListener = new LoveTropicsListener(donationApi, donorIndex, emailTotals, discordTotals,
+                lanes, actions, store, deferred, args.minDonation);
+        final ReverifyJob reverifyJob = new ReverifyJob(dataFolder, ltListener, store, donationApi, args.reverifyConcurrency, Duration.ofSeconds(5));
+        final RoleReconciler reconciler = new RoleReconciler(client, actions, store, ltListener.getGuild(),
+                ltListener.getDonorRole(), ltListener.getWhitelistRole(), args.reconcileConcurrency, args.reconcileRemove);
+        
+        Metrics.gauge("dv_donor_index_size", "Donors in the local donor index", donorIndex::size);
+        Metrics.gauge("dv_lanes_queued", "Events waiting for an earlier event of the same user", lanes::getQueued);
+        final WebServer webServer;
+        if (args.metrics || args.ingestKey != null) {
+            webServer = new WebServer(args.httpHost, args.httpPort);
+            if (args.metrics) {
+                webServer.route("/metrics", WebServer::metrics);
+            }
+            if (args.ingestKey != null) {
+                webServer.route("/donations", new DonationIngest(args.ingestKey, donorIndex, store, ltListener)::handle);
+            }
+            webServer.start();
+        } else {
+            webServer = null;
+        }
+        
+        final EventPipeline<ReactionAddEvent> reactionPipeline = new EventPipeline<>("reaction", args.maxReactions, args.queueSize, args.overflow);
+        final EventPipeline<MessageCreateEvent> messagePipeline = new EventPipeline<>("message", args.maxMessages, args.queueSize, args.overflow);
+        
+        // Stop taking new work, let running events finish, then save everything and disconnect.
+        // Runs at most once, whether from the "stop" command or the shutdown hook.
+        final AtomicBoolean stopping = new AtomicBoolean();
+        final Runnable shutdown = () -> {
+            if (!stopping.compareAndSet(false, true)) {
+                return;
+            }
+            System.out.println("Stopping, waiting up to " + args.shutdownTimeout + "s for running events");
+            jobs.dispose();
+            if (webServer != null) {
+                webServer.stop();
+            }
+            boolean drained = Mono.when(reactionPipeline.stop(), messagePipeline.stop())
+                    .thenReturn(true)
+                    .timeout(Duration.ofSeconds(args.shutdownTimeout), Mono.just(false))
+                    .block();
+            if (!drained) {
+                System.out.println("Gave up waiting for " + (reactionPipeline.getInFlight() + messagePipeline.getInFlight()) + " running events");
+            }
+            ltListener.flush();
+            reverifyJob.flush();
+            deferred.flush();
+            Flux.fromIterable(shards).flatMap(DiscordClient::logout).blockLast();
+        };
         
         // Make sure shutdown things are run, regardless of where shutdown came from
-        // The above System.exit(0) will trigger this hook
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            client.logout().block();
-        }));
-                
-        // Handle "stop" and any future commands
-        Mono.fromCallable(() -> {
-            Scanner scan = new Scanner(System.in);
-            while (true) {
-                while (scan.hasNextLine()) {
-                    if (scan.nextLine().equals("stop")) {
-                        scan.close();
-                        System.exit(0);
+        Runtime.getRuntime().addShutdownHook(new Thread(shutdown));
+        
+        new AdminConsole(System.in, System.out)
+                .register("stop", "stop", "Finishes running events, saves everything and exits", (a, out) -> {
+                    shutdown.run();
+                    System.exit(0);
+                })
+                .register("stats", "stats", "Shows event, queue and job status", (a, out) -> {
+                    for (EventPipeline<?> pipeline : Arrays.asList(reactionPipeline, messagePipeline)) {
+                        out.println(String.format("%s events: %d queued, %d running, %d handled, %d dropped", pipeline.getName(),
+                                pipeline.getQueued(), pipeline.getInFlight(), pipeline.getHandled(), pipeline.getDropped()));
                     }
-                }
-                Thread.sleep(100);
-            }
-        }).subscribeOn(Schedulers.newSingle("Console Listener"))
-          .subscribe();
+                    out.println("Waiting in lanes: " + lanes.getQueued());
+                    out.println("Users: " + store.size() + " in " + store.getPartitionCount() + " partitions");
+                    out.println("Donor index: " + donorIndex.size() + " donors");
+                    out.println("Donation API: circuit " + breaker.getState() + ", " + donationApi.getMetrics());
+                    out.println("Deferred verifications: " + deferred.size());
+                    out.println("Re-verification " + reverifyJob.getStatus());
+                    out.println("Last reconciliation: " + (reconciler.isRunning() ? "running, " : "") + reconciler.getLastReport());
+                    Runtime runtime = Runtime.getRuntime();
+                    out.println("Heap: " + (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024) + "/" + runtime.maxMemory() / (1024 * 1024) + " MiB");
+                })
+                .register("cache", "cache [clear]", "Shows donation total cache stats, or empties the caches", (a, out) -> {
+                    if (a.length > 0 && a[0].equals("clear")) {
+                        emailTotals.invalidateAll();
+                        discordTotals.invalidateAll();
+                        out.println("Cleared donation total caches");
+                        return;
+                    }
+                    printCache(out, "email", emailTotals);
+                    printCache(out, "discord", discordTotals);
+                })
+                .register("users", "users", "Counts users by state", (a, out) -> {
+                    int[] counts = new int[UserStore.State.values().length];
+                    store.forEach((id, state, verifiedEmail, attemptedEmails, resets) -> {
+                        if (state != null) {
+                            counts[state.ordinal()]++;
+                        }
+                    });
+                    out.println(store.size() + " users in " + store.getPartitionCount() + " partitions");
+                    for (UserStore.State state : UserStore.State.values()) {
+                        out.println("  " + state + ": " + counts[state.ordinal()]);
+                    }
+                })
+                .register("user", "user <id>", "Shows the stored state of a user", (a, out) -> {
+                    if (a.length != 1) {
+                        out.println("Usage: user <id>");
+                        return;
+                    }
+                    long id = Long.parseLong(a[0]);
+                    UserStore users = store.getUsers(id);
+                    if (!users.contains(id)) {
+                        out.println("No state stored for user " + id);
+                        return;
+                    }
+                    out.println("State: " + users.getState(id));
+                    out.println("Verified email: " + users.getVerifiedEmail(id));
+                    out.println("Tried emails: " + String.join(", ", users.getAttemptedEmails(id)));
+                    out.println("Resets: " + users.getResets(id));
+                    out.println("Partition: " + StateStore.partition(id, store.getPartitionCount()));
+                })
+                .register("email", "email <email>", "Shows who verified or tried an email", (a, out) -> {
+                    if (a.length != 1) {
+                        out.println("Usage: email <email>");
+                        return;
+                    }
+                    long owner = store.getEmailOwner(a[0]);
+                    out.println("Verified by: " + (owner == 0 ? "nobody" : owner));
+                    out.println("Last tried by: " + store.getUserByEmail(a[0]));
+                    out.println("Indexed total: " + donorIndex.getTotal(a[0]).map(String::valueOf).defaultIfEmpty("not indexed").block());
+                })
+                .register("flush", "flush", "Writes all pending state to disk now", (a, out) -> {
+                    ltListener.flush();
+                    reverifyJob.flush();
+                    deferred.flush();
+                    out.println("Flushed");
+                })
+                .register("reload", "reload", "Empties the donation total caches and syncs the donor index", (a, out) -> {
+                    emailTotals.invalidateAll();
+                    discordTotals.invalidateAll();
+                    donorIndex.sync()
+                            .subscribe(count -> out.println("Synced " + count + " new donations"), t -> out.println("Donor index sync failed: " + t));
+                })
+                .register("reverify", "reverify [status]", "Re-checks every user who is not accepted yet, or shows progress", (a, out) -> {
+                    if (a.length > 0 && a[0].equals("status")) {
+                        out.println("Re-verification " + reverifyJob.getStatus());
+                    } else if (!reverifyJob.start()) {
+                        out.println("Re-verification is already running: " + reverifyJob.getStatus());
+                    }
+                })
+                .register("reconcile", "reconcile", "Fixes donor and whitelist roles of every guild member", (a, out) -> {
+                    reconciler.run()
+                            .switchIfEmpty(Mono.fromRunnable(() -> out.println("Reconciliation is already running")))
+                            .subscribe(report -> out.println("Reconciled: " + report), t -> out.println("Reconciliation failed: " + t));
+                })
+                .start();
         
-        Mono<Void> reactions = client.getEventDispatcher().on(ReactionAddEvent.class)
-                .flatMap(ltListener::onReactAdd)
-                .then();
+        reverifyJob.resume();
+        jobs.add(deferred.start(Duration.ofSeconds(args.deferredRetry), args.deferredConcurrency, ltListener::completeDeferred, donationApi::isUnavailable));
+        if (args.reconcile > 0) {
+            jobs.add(reconciler.start(Duration.ofMinutes(args.reconcile)));
+        }
         
-        Mono<Void> messages = client.getEventDispatcher().on(MessageCreateEvent.class)
-                .flatMap(ltListener::onMessage)
+        Mono<Void> reactions = reactionPipeline.run(Flux.merge(Flux.fromIterable(shards).map(c -> c.getEventDispatcher().on(ReactionAddEvent.class))), ltListener::onReactAdd);
+        Mono<Void> messages = messagePipeline.run(Flux.merge(Flux.fromIterable(shards).map(c -> c.getEventDispatcher().on(MessageCreateEvent.class))), ltListener::onMessage);
+        
+        // Members who rejoin get their roles back straight away
+        Mono<Void> joins = Flux.merge(Flux.fromIterable(shards).map(c -> c.getEventDispatcher().on(MemberJoinEvent.class)))
+                .filter(e -> !stopping.get() && e.getGuildId().equals(ltListener.getGuild()))
+                .flatMap(e -> reconciler.reconcile(e.getMember()))
                 .then();
         
-        Mono.when(reactions, messages, client.login()).block();
+        Mono.when(reactions, messages, joins, Flux.fromIterable(shards).flatMap(DiscordClient::login)).block();
+    }
+    
+    private static void printCache(PrintStream out, String name, DonationCache<?> cache) {
+        long lookups = cache.getHits() + cache.getMisses();
+        out.println(String.format("%s totals: %d cached, %d hits, %d misses, %.1f%% hit rate", name, cache.size(), cache.getHits(), cache.getMisses(),
+                lookups == 0 ? 0 : 100.0 * cache.getHits() / lookups));
+    }
+    
+    private static <K> DonationCache<K> createCache(String name) {
+        DonationCache<K> ret = new DonationCache<>(args.cacheSize, Duration.ofSeconds(args.cacheTtl), Duration.ofSeconds(args.cacheNegativeTtl), Duration.ofSeconds(args.cacheRefresh));
+        Metrics.gauge("dv_cache_size", "Cached donation totals", ret::size, "cache", name);
+        Metrics.counter("dv_cache_hits_total", "Donation total lookups answered from the cache", ret::getHits, "cache", name);
+        Metrics.counter("dv_cache_misses_total", "Donation total lookups which went to the API or joined a running request", ret::getMisses, "cache", name);
+        return ret;
     }
 }
@@ -0,0 +1,141 @@
+package com.lovetropics.donations;
+
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import com.google.common.collect.Maps;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * In-memory index of donation totals by email, kept up to date by paging through the donation list.
+ * The first sync reads every donation, later ones only ask for donations after the last one seen.
+ * Donations can also be pushed in as they happen, in any order; each ID is only counted once.
+ * <p>
+ * Every ID up to the sync position has been counted, so only pushed IDs ahead of it are remembered,
+ * until the sync catches up with them.
+ */
+@RequiredArgsConstructor
+@Slf4j
+public class DonorIndex {
+    
+    private final DonationApi api;
+    private final int pageSize;
+    
+    private final Map<String, Double> totals = Maps.newConcurrentMap();
+    
+    private volatile int lastSeenId;
+    /** IDs above {@link #lastSeenId} which were already counted. Guarded by itself. */
+    private final Set<Integer> countedAhead = new HashSet<>();
+    private final AtomicBoolean syncing = new AtomicBoolean();
+    
+    public static String normalize(String email) {
+        return email.trim().toLowerCase(Locale.ROOT);
+    }
+    
+    /**
+     * @return The indexed total for this email, or empty if it is not indexed
+     */
+    public Mono<Double> getTotal(String email) {
+        return Mono.justOrEmpty(totals.get(normalize(email)));
+    }
+    
+    /**
+     * The index can lag behind the API, so it is only trusted once it shows at least {@code minimum}.
+     *
+     * @return The indexed total if it is at least {@code minimum}, otherwise the result of {@code remote}
+     */
+    public Mono<Double> getTotal(String email, double minimum, Supplier<Mono<Double>> remote) {
+        return getTotal(email)
+                .filter(total -> total >= minimum)
+                .switchIfEmpty(Mono.defer(remote));
+    }
+    
+    /**
+     * Syncs immediately, and then once every {@code interval}. Syncs which would overlap a running
+     * one are skipped.
+     */
+    public Disposable start(Duration interval) {
+        return Flux.interval(Duration.ZERO, interval)
+                .onBackpressureDrop()
+                .concatMap($ -> sync()
+                        .doOnError(t -> log.error("Failed to sync donor index", t))
+                        .onErrorResume(t -> Mono.empty()), 1)
+                .subscribe();
+    }
+    
+    /**
+     * Fetches every donation after the last one seen, one page at a time.
+     *
+     * @return The amount of new donations
+     */
+    public Mono<Integer> sync() {
+        return Mono.defer(() -> {
+            if (!syncing.compareAndSet(false, true)) {
+                return Mono.just(0);
+            }
+            // Cleared before the result is passed on, so a sync started as soon as this one returns is not skipped
+            return syncFrom(0)
+                    .doOnEach($ -> syncing.set(false))
+                    .doOnCancel(() -> syncing.set(false))
+                    .doOnNext(count -> {
+                        if (count > 0) {
+                            log.info("Indexed {} new donations, {} donors total", count, totals.size());
+                        }
+                    });
+        });
+    }
+    
+    private Mono<Integer> syncFrom(int count) {
+        return api.getDonations(lastSeenId, pageSize)
+                .flatMap(page -> {
+                    int last = lastSeenId;
+                    int total = count;
+                    for (Donation donation : page) {
+                        if (add(donation)) {
+                            total++;
+                        }
+                        last = Math.max(last, donation.getId());
+                    }
+                    // Moved once the whole page is counted, in case it is not sorted by ID
+                    synchronized (countedAhead) {
+                        lastSeenId = last;
+                        int until = last;
+                        countedAhead.removeIf(id -> id <= until);
+                    }
+                    return page.length < pageSize ? Mono.just(total) : syncFrom(total);
+                });
+    }
+    
+    /**
+     * Adds a donation to the total of its email, unless a donation with the same ID was already added.
+     * This does not move the sync position, so a pushed donation can never make a sync skip earlier ones.
+     * Donations at or below the sync position were counted by the sync, as it reads every one of them.
+     *
+     * @return True if the donation was new
+     */
+    public boolean add(Donation donation) {
+        synchronized (countedAhead) {
+            if (donation.getId() <= lastSeenId || !countedAhead.add(donation.getId())) {
+                return false;
+            }
+        }
+        if (donation.getEmail() != null) {
+            totals.merge(normalize(donation.getEmail()), donation.getAmount(), Double::sum);
+        }
+        return true;
+    }
+    
+    public int size() {
+        return totals.size();
+    }
+}
@@ -0,0 +1,111 @@
+package com.lovetropics.donations;
+
+import java.util.Arrays;
+
+/**
+ * Interns normalized emails to small int IDs, starting at 1, so users can refer to an email with one
+ * int however many times it is tried or verified. Also tracks which user owns each email, and which
+ * user most recently tried it.
+ * <p>
+ * Emails are looked up through an open addressing table of IDs, hashed by the email string. Not
+ * thread safe, {@link UserStore} guards it.
+ */
+class EmailTable {
+    
+    static final int NONE = 0;
+    
+    private String[] emails = new String[16];
+    private long[] owners = new long[16];
+    private long[] lastUsers = new long[16];
+    private int size;
+    
+    private int[] slots = new int[32];
+    private int mask = slots.length - 1;
+    
+    private static int hash(String email) {
+        int h = email.hashCode();
+        return h ^ (h >>> 16);
+    }
+    
+    /**
+     * @return The ID of this email, or {@link #NONE} if it was never interned
+     */
+    int find(String email) {
+        String normalized = DonorIndex.normalize(email);
+        int i = hash(normalized) & mask;
+        int id;
+        while ((id = slots[i]) != NONE) {
+            if (emails[id - 1].equals(normalized)) {
+                return id;
+            }
+            i = (i + 1) & mask;
+        }
+        return NONE;
+    }
+    
+    int intern(String email) {
+        String normalized = DonorIndex.normalize(email);
+        int i = hash(normalized) & mask;
+        int id;
+        while ((id = slots[i]) != NONE) {
+            if (emails[id - 1].equals(normalized)) {
+                return id;
+            }
+            i = (i + 1) & mask;
+        }
+        if (size == emails.length) {
+            emails = Arrays.copyOf(emails, size * 2);
+            owners = Arrays.copyOf(owners, size * 2);
+            lastUsers = Arrays.copyOf(lastUsers, size * 2);
+        }
+        emails[size] = normalized;
+        slots[i] = ++size;
+        if (size * 2 > slots.length) {
+            rehash(slots.length * 2);
+        }
+        return size;
+    }
+    
+    private void rehash(int capacity) {
+        slots = new int[capacity];
+        mask = capacity - 1;
+        for (int id = 1; id <= size; id++) {
+            int i = hash(emails[id - 1]) & mask;
+            while (slots[i] != NONE) {
+                i = (i + 1) & mask;
+            }
+            slots[i] = id;
+        }
+    }
+    
+    String get(int id) {
+        return id == NONE ? null : emails[id - 1];
+    }
+    
+    long getOwner(int id) {
+        return id == NONE ? 0 : owners[id - 1];
+    }
+    
+    void setOwner(int id, long user) {
+        owners[id - 1] = user;
+    }
+    
+    long getLastUser(int id) {
+        return id == NONE ? 0 : lastUsers[id - 1];
+    }
+    
+    void setLastUser(int id, long user) {
+        lastUsers[id - 1] = user;
+    }
+    
+    /**
+     * @return The emails interned so far, in order of their IDs
+     */
+    String[] copyEmails() {
+        return Arrays.copyOf(emails, size);
+    }
+    
+    int size() {
+        return size;
+    }
+}
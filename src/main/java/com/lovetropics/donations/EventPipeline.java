@@ -0,0 +1,120 @@
+package com.lovetropics.donations;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.BufferOverflowStrategy;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+
+/**
+ * Runs a handler for every event of a stream, with at most a fixed amount running at once. Events
+ * which arrive while all slots are busy wait in a bounded queue, and once that is full the overflow
+ * policy decides which event is dropped.
+ * <p>
+ * {@link #stop()} stops taking new events, and lets the queued and running ones finish.
+ */
+@RequiredArgsConstructor
+@Slf4j
+public class EventPipeline<E> {
+    
+    public enum Overflow {
+        /** Drop the event that just arrived */
+        DROP_NEWEST(BufferOverflowStrategy.DROP_LATEST),
+        /** Drop the event that has been waiting the longest */
+        DROP_OLDEST(BufferOverflowStrategy.DROP_OLDEST),
+        ;
+        
+        private final BufferOverflowStrategy strategy;
+        
+        Overflow(BufferOverflowStrategy strategy) {
+            this.strategy = strategy;
+        }
+    }
+    
+    private final String name;
+    private final int maxConcurrency;
+    private final int maxQueued;
+    private final Overflow overflow;
+    
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder handled = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    
+    private final MonoProcessor<Void> stopped = MonoProcessor.create();
+    private final MonoProcessor<Void> drained = MonoProcessor.create();
+    private volatile boolean started;
+    
+    public Mono<Void> run(Flux<E> events, Function<E, ? extends Mono<?>> handler) {
+        Metrics.gauge("dv_events_queued", "Events waiting for a free slot", queued::get, "type", name);
+        Metrics.gauge("dv_events_in_flight", "Events being handled", inFlight::get, "type", name);
+        Metrics.counter("dv_events_handled_total", "Events handled", handled::sum, "type", name);
+        Metrics.counter("dv_events_dropped_total", "Events dropped because the queue was full", dropped::sum, "type", name);
+        started = true;
+        return events
+                .takeUntilOther(stopped)
+                .doOnNext($ -> queued.incrementAndGet())
+                .onBackpressureBuffer(maxQueued, this::drop, overflow.strategy)
+                .flatMap(event -> {
+                    queued.decrementAndGet();
+                    inFlight.incrementAndGet();
+                    return handler.apply(event)
+                            .then()
+                            .doOnError(t -> log.error("Unhandled error in {} pipeline", name, t))
+                            .onErrorResume(t -> Mono.empty())
+                            .doFinally($ -> {
+                                inFlight.decrementAndGet();
+                                handled.increment();
+                            });
+                }, maxConcurrency)
+                .then()
+                .doFinally($ -> drained.onComplete());
+    }
+    
+    /**
+     * Stops taking new events from the stream.
+     *
+     * @return Completes once every event taken before stopping has been handled
+     */
+    public Mono<Void> stop() {
+        stopped.onComplete();
+        if (!started) {
+            drained.onComplete();
+        }
+        return drained;
+    }
+    
+    private void drop(E event) {
+        queued.decrementAndGet();
+        dropped.increment();
+        log.warn("Dropped {} event, more than {} are queued", name, maxQueued);
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    /**
+     * @return The amount of events waiting for a free slot
+     */
+    public int getQueued() {
+        return queued.get();
+    }
+    
+    public int getInFlight() {
+        return inFlight.get();
+    }
+    
+    public long getHandled() {
+        return handled.sum();
+    }
+    
+    public long getDropped() {
+        return dropped.sum();
+    }
+}
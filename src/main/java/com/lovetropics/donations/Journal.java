@@ -0,0 +1,156 @@
+package com.lovetropics.donations;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+import javax.annotation.Nullable;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * An append-only log of records, one JSON object per line. Records are expected to be idempotent, as
+ * records written while a snapshot is being taken may be replayed on top of that snapshot.
+ * <p>
+ * Compaction moves the live file aside, lets the caller write a snapshot, and then deletes the old
+ * file. If the process dies before that finishes, the old file is replayed before the live one.
+ */
+@Slf4j
+public class Journal<R> {
+
+    private final File file;
+    private final File rotated;
+    private final Gson gson;
+    private final Class<R> type;
+
+    private @Nullable Writer writer;
+    private int records;
+
+    public Journal(File file, Gson gson, Class<R> type) {
+        this.file = file;
+        this.rotated = new File(file.getParentFile(), file.getName() + ".old");
+        this.gson = gson;
+        this.type = type;
+    }
+
+    @SneakyThrows
+    public synchronized void append(R record) {
+        if (writer == null) {
+            writer = open();
+        }
+        gson.toJson(record, type, writer);
+        writer.write('\n');
+        writer.flush();
+        records++;
+    }
+
+    /**
+     * Reads every record currently in the journal, oldest first. Lines which cannot be parsed (such
+     * as a record cut off by a crash) are logged and skipped.
+     *
+     * @return The amount of records replayed
+     */
+    public synchronized int replay(Consumer<R> consumer) {
+        return replay(rotated, consumer) + replay(file, consumer);
+    }
+
+    @SneakyThrows
+    private int replay(File from, Consumer<R> consumer) {
+        if (!from.exists()) {
+            return 0;
+        }
+        int count = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(from), StandardCharsets.UTF_8))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty()) {
+                    continue;
+                }
+                R record;
+                try {
+                    record = gson.fromJson(line, type);
+                } catch (JsonParseException e) {
+                    log.warn("Skipping unreadable record at {}:{}: {}", from, lineNumber, e.getMessage());
+                    continue;
+                }
+                if (record != null) {
+                    consumer.accept(record);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Folds the journal into a snapshot. The journal is rotated before {@code snapshot} runs, so
+     * records appended while it is running are kept for the next compaction.
+     */
+    @SneakyThrows
+    public void compact(Runnable snapshot) {
+        synchronized (this) {
+            if (records == 0 && !file.exists() && !rotated.exists()) {
+                return;
+            }
+            if (writer != null) {
+                writer.close();
+                writer = null;
+            }
+            records = 0;
+            if (file.exists()) {
+                if (rotated.exists()) {
+                    // A previous compaction never finished, keep both until the snapshot is written
+                    Files.write(rotated.toPath(), new byte[] { '\n' }, StandardOpenOption.APPEND);
+                    Files.write(rotated.toPath(), Files.readAllBytes(file.toPath()), StandardOpenOption.APPEND);
+                    Files.delete(file.toPath());
+                } else {
+                    Files.move(file.toPath(), rotated.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                }
+            }
+        }
+        snapshot.run();
+        Files.deleteIfExists(rotated.toPath());
+    }
+
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    private Writer open() throws IOException {
+        file.getParentFile().mkdirs();
+        boolean needsSeparator = false;
+        if (file.length() > 0) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                raf.seek(raf.length() - 1);
+                needsSeparator = raf.read() != '\n';
+            }
+        }
+        Writer ret = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+        if (needsSeparator) {
+            // The last record was cut off, make sure it does not swallow the next one
+            ret.write('\n');
+        }
+        return ret;
+    }
+}
@@ -1,24 +1,15 @@
 package com.lovetropics.donations;
 
-import java.io.File;
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
 import java.text.NumberFormat;
 import java.util.Locale;
-import java.util.Map;
-import java.util.Set;
+import java.util.function.Function;
 import java.util.regex.Pattern;
 
-import com.google.common.base.Charsets;
-import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonObject;
-import com.google.gson.annotations.SerializedName;
+import com.lovetropics.donations.UserStore.State;
 
 import discord4j.core.event.domain.message.MessageCreateEvent;
 import discord4j.core.event.domain.message.ReactionAddEvent;
+import discord4j.core.object.entity.Message;
 import discord4j.core.object.entity.MessageChannel;
 import discord4j.core.object.entity.PrivateChannel;
 import discord4j.core.object.entity.TextChannel;
@@ -26,132 +17,140 @@ import discord4j.core.object.entity.User;
 import discord4j.core.object.reaction.ReactionEmoji;
 import discord4j.core.object.util.Snowflake;
 import discord4j.rest.http.client.ClientException;
-import io.netty.handler.codec.http.HttpResponseStatus;
+import lombok.Getter;
 import lombok.RequiredArgsConstructor;
-import lombok.Setter;
-import lombok.Value;
-import lombok.experimental.NonFinal;
 import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-import reactor.netty.http.client.HttpClient;
+import reactor.util.function.Tuples;
 
 @RequiredArgsConstructor
 @Slf4j
 public class LoveTropicsListener {
     
-    @Value
-    private static class Donation {
-        int id;
-        double amount;
-        @SerializedName("display_name")
-        String name;
-        String email;
-    }
-    
-    private enum State {
-        NONE,
-        REJECTED,
-        PENDING,
-        VERIFIED,
-        ACCEPTED,
-        WHITELISTED,
-        ;
-    }
-    
-    @Value
-    @RequiredArgsConstructor
-    private static class Data {
-        @NonFinal
-        @Setter
-        volatile Snowflake message;
-        Map<Snowflake, State> userStates = Maps.newConcurrentMap();
-        Map<Snowflake, String> verifiedEmails = Maps.newConcurrentMap();
-        Map<Snowflake, Set<String>> attemptedEmails = Maps.newConcurrentMap();
-        Map<Snowflake, Integer> resets = Maps.newConcurrentMap();
-    }
-
-    private static final Pattern MAYBE_EMAIL = Pattern.compile("\\S+@\\S+\\.\\w+");
-    
-    private static final Gson GSON = new GsonBuilder()
-            .registerTypeAdapter(Snowflake.class, new SnowflakeTypeAdapter())
-            .enableComplexMapKeySerialization()
-            .create();
+    static final Pattern MAYBE_EMAIL = Pattern.compile("\\S+@\\S+\\.\\w+");
     
     private static final NumberFormat CURRENCY_FMT = NumberFormat.getCurrencyInstance(Locale.US);
     
-    private final SaveHelper<Data> saveHelper = new SaveHelper<>(new File("lovetropics"), GSON, new Data());
+    private static final Metrics.Counter DISCORD_ERRORS = Metrics.counter("dv_errors_total", "Errors while handling events", "type", "discord");
+    private static final Metrics.Counter UNEXPECTED_ERRORS = Metrics.counter("dv_errors_total", "Errors while handling events", "type", "unexpected");
+    private static final Metrics.Counter PRIVATE_CHANNEL_ERRORS = Metrics.counter("dv_errors_total", "Errors while handling events", "type", "private_channel");
+    private static final Metrics.Counter SEND_ERRORS = Metrics.counter("dv_errors_total", "Errors while handling events", "type", "send_message");
+    private static final Metrics.Counter ROLE_ERRORS = Metrics.counter("dv_errors_total", "Errors while handling events", "type", "add_role");
+    private static final String ALREADY_CLAIMED = "That email has already been used to verify another Discord account. If you believe this is a mistake, please contact a moderator.";
     
-    private final Data data = saveHelper.fromJson("data.json", Data.class);
+    private static final Metrics.Counter DUPLICATE_CLAIMS = Metrics.counter("dv_duplicate_claims_total", "Emails rejected because another user already verified with them");
     
+    @Getter
     private final Snowflake guild = Snowflake.of(444746940761243652L); // Love Tropics
     private final Snowflake verifyChannel = Snowflake.of(1037017382985666590L); // #verify-donation
     private final Snowflake adminRole = Snowflake.of(444888468078985227L); // Overseer
+    @Getter
     private final Snowflake donorRole = Snowflake.of(1037005513772240927L); // Donor
+    @Getter
     private final Snowflake whitelistRole = Snowflake.of(906185039069466695L); // Server Member
 
     private final ReactionEmoji react = ReactionEmoji.unicode("\uD83D\uDCB8");
     
-    private final String api;
-    private final String key;
+    private final DonationApi donationApi;
+    private final DonorIndex donorIndex;
+    private final DonationCache<String> emailTotals;
+    private final DonationCache<Long> discordTotals;
+    private final UserLanes lanes;
+    private final DiscordActions actions;
+    private final StateStore store;
+    private final DeferredVerifications deferred;
     private final int minDonation;
     
+    /**
+     * Handles the message in the lane of its author, after any of their events which arrived earlier.
+     */
     public Mono<Void> onMessage(MessageCreateEvent event) {
-        return onMessageInternal(event)
+        long author = event.getMessage().getAuthor().map(u -> u.getId().asLong()).orElse(0L);
+        return lanes.submit(author, () -> onMessageInternal(event)
                 .then()
                 .doOnError(t -> log.error("LoveTropics error: ", t))
-                .onErrorResume(ClientException.class, t -> event.getMessage().getChannel()
-                        .flatMap(c -> c.createMessage("Discord error processing donations: " + t.getMessage()))
-                        .then())
-                .onErrorResume(t -> event.getMessage().getChannel()
-                        .flatMap(c -> c.createMessage("Unexpected error processing donations: " + t.toString()))
-                        .then());
+                .onErrorResume(ClientException.class, t -> {
+                    DISCORD_ERRORS.increment();
+                    return event.getMessage().getChannel()
+                            .flatMap(c -> c.createMessage("Discord error processing donations: " + t.getMessage()))
+                            .then();
+                })
+                .onErrorResume(t -> {
+                    UNEXPECTED_ERRORS.increment();
+                    return event.getMessage().getChannel()
+                            .flatMap(c -> c.createMessage("Unexpected error processing donations: " + t.toString()))
+                            .then();
+                }));
     }
     
-    private Mono<?> onMessageInternal(MessageCreateEvent event) {
+    private Mono<Void> onMessageInternal(MessageCreateEvent event) {
         Snowflake author = event.getMessage().getAuthor().map(User::getId).orElse(null);
-        MessageChannel channel = event.getMessage().getChannel().block();
+        if (author == null) {
+            return Mono.empty();
+        }
+        return event.getMessage().getChannel()
+                .flatMap(channel -> onMessageInternal(event, author, channel).then());
+    }
+    
+    private Mono<?> onMessageInternal(MessageCreateEvent event, Snowflake author, MessageChannel channel) {
         if (channel instanceof PrivateChannel) {
             PrivateChannel dm = (PrivateChannel) channel;
-            State state = data.getUserStates().getOrDefault(author, State.NONE);
+            UserStore users = store.getUsers(author.asLong());
+            State state = users.getState(author.asLong());
             if (state == State.PENDING || state == State.VERIFIED) {
                 final String email;
                 int triesTmp = -1; // Where this is printed will never run if it's not set later on
+                boolean usedAttempt = false;
                 if (state == State.PENDING) {
+                    // Sent to the API as typed, the store normalizes it for its own keys
                     email = event.getMessage().getContent().orElse("").trim();
                     if (MAYBE_EMAIL.matcher(email).matches()) {
-                        Set<String> prevEmails = data.getAttemptedEmails().computeIfAbsent(author, $ -> Sets.newConcurrentHashSet());
-                        triesTmp = data.getResets().merge(author, prevEmails.contains(email) ? 0 : 1, (i1, i2) -> Math.min(999, i1 + i2));
-                        if (triesTmp > 3 && !prevEmails.contains(email)) {
-                            return save().then(dm.createMessage("Sorry, you are out of email attempts."));
+                        // Checked before recording the attempt, so a claimed email neither uses up an attempt nor gets tied to this user
+                        long owner = store.getEmailOwner(email);
+                        if (owner != 0 && owner != author.asLong()) {
+                            DUPLICATE_CLAIMS.increment();
+                            log.info("User {} tried email already claimed by {}", author.asLong(), owner);
+                            return actions.sendMessage(dm, ALREADY_CLAIMED);
+                        }
+                        boolean seenEmail = users.hasAttemptedEmail(author.asLong(), email);
+                        if (seenEmail) {
+                            // Re-entering the same email is how users ask to check again
+                            emailTotals.refresh(DonorIndex.normalize(email));
+                        }
+                        triesTmp = store.bumpResets(author.asLong(), seenEmail ? 0 : 1);
+                        usedAttempt = !seenEmail;
+                        if (triesTmp > 3 && !seenEmail) {
+                            return save().then(actions.sendMessage(dm, "Sorry, you are out of email attempts."));
                         }
                         if (triesTmp < 100) { // In case of spammer...that's enough
-                            data.getAttemptedEmails().get(author).add(email);
+                            store.addAttemptedEmail(author.asLong(), email);
                         }
                     } else {
-                        return dm.createMessage("That doesn't look like a valid email. Please try again.");
+                        return actions.sendMessage(dm, "That doesn't look like a valid email. Please try again.");
                     }
                 } else {
-                    email = data.getVerifiedEmails().get(author);
+                    email = users.getVerifiedEmail(author.asLong());
+                    if (email == null) {
+                        // Verified through their linked Discord account, so that is what gets checked again
+                        User user = event.getMessage().getAuthor().get();
+                        discordTotals.refresh(author.asLong());
+                        return recheckLinked(user, dm);
+                    }
+                    emailTotals.refresh(email);
                 }
 
                 final int tries = triesTmp;
-                return getTotalDonations(email)
-                        .filter(total -> total > 0)
-                        .flatMap(total -> Mono.justOrEmpty(event.getMessage().getAuthor()).flatMap(u -> u.asMember(guild)).flatMap(m -> m.addRole(donorRole)).thenReturn(total))
-                        .flatMap(total -> dm.createMessage("Your email was verified! Donation amount: " + CURRENCY_FMT.format(total)).thenReturn(total))
-                        .flatMap(total -> {
-                             data.getVerifiedEmails().put(author, email);
-                             if (total >= minDonation) {
-                                 data.getUserStates().put(author, State.ACCEPTED);
-                                 return save()
-                                         .then(Mono.justOrEmpty(event.getMessage().getAuthor()).flatMap(u -> u.asMember(guild)).flatMap(m -> m.addRole(whitelistRole)))
-                                         .then(dm.createMessage("Congratulations! This amount qualifies for server access."));
-                             } else {
-                                 data.getUserStates().put(author, State.VERIFIED);
-                                 return save().then(dm.createMessage("Unfortunately, this is not enough to qualify for server access. However, you have still been assigned the donor role!\n\nYou need at least " + CURRENCY_FMT.format(minDonation) + " across all donations to qualify.\n**Say anything in this chat to try again.**"));
-                             }
-                        })
-                        .switchIfEmpty(dm.createMessage("Sorry, there were no donations by that email. Either the email was incorrect, or you have not donated yet.\n\nYou may try **" + (3 - tries) + "** more times to enter the correct email, or enter the same email again to re-attempt."));
+                final boolean refund = usedAttempt;
+                return verifyEmail(author.asLong(), email, tries, content -> actions.sendMessage(dm, content))
+                        .onErrorResume(DonationApi.UnavailableException.class, t -> {
+                            log.warn("Deferring verification of user {}: {}", author.asLong(), t.getMessage());
+                            if (refund) {
+                                store.bumpResets(author.asLong(), -1);
+                            }
+                            deferred.add(author.asLong(), email);
+                            return save().then(actions.sendMessage(dm, "Sorry, donations can't be checked right now. This did not use up one of your attempts, and I will message you here as soon as your email has been checked."));
+                        });
                 
             }
         } else if (channel instanceof TextChannel) {
@@ -173,71 +172,154 @@ public class LoveTropicsListener {
         return Mono.empty();
     }
     
+    /**
+     * Looks up the total for this email and updates the state and roles of the user to match. Fails
+     * with {@link DonationApi.UnavailableException} before changing anything if the API is unavailable.
+     *
+     * @param tries Attempts used so far, for the message if there are no donations
+     * @param reply Sends a message to the user
+     */
+    private Mono<Message> verifyEmail(long user, String email, int tries, Function<String, Mono<Message>> reply) {
+        Snowflake author = Snowflake.of(user);
+        return getTotalDonations(email)
+                .filter(total -> total > 0)
+                .flatMap(total -> {
+                    // Another user may have verified with this email while the total was being looked up
+                    if (!store.claimEmail(user, email)) {
+                        DUPLICATE_CLAIMS.increment();
+                        log.info("User {} lost the claim on email to {}", user, store.getEmailOwner(email));
+                        return reply.apply(ALREADY_CLAIMED);
+                    }
+                    grantRole(author, donorRole);
+                    return reply.apply("Your email was verified! Donation amount: " + CURRENCY_FMT.format(total))
+                            .then(Mono.defer(() -> {
+                                if (total >= minDonation) {
+                                    store.setState(user, State.ACCEPTED);
+                                    grantRole(author, whitelistRole);
+                                    return save()
+                                            .then(reply.apply("Congratulations! This amount qualifies for server access."));
+                                } else {
+                                    store.setState(user, State.VERIFIED);
+                                    return save().then(reply.apply("Unfortunately, this is not enough to qualify for server access. However, you have still been assigned the donor role!\n\nYou need at least " + CURRENCY_FMT.format(minDonation) + " across all donations to qualify.\n**Say anything in this chat to try again.**"));
+                                }
+                            }));
+                })
+                .switchIfEmpty(Mono.defer(() -> reply.apply("Sorry, there were no donations by that email. Either the email was incorrect, or you have not donated yet.\n\nYou may try **" + (3 - tries) + "** more times to enter the correct email, or enter the same email again to re-attempt.")));
+    }
+    
+    /**
+     * Checks the total of a user who verified through their linked Discord account again. They stay
+     * verified whatever the answer, as they have already been checked once and have no email to fall
+     * back on.
+     */
+    private Mono<Message> recheckLinked(User user, PrivateChannel dm) {
+        long id = user.getId().asLong();
+        return getTotalDonations(user)
+                .flatMap(total -> actions.sendMessage(dm, "Donation amount: " + CURRENCY_FMT.format(total))
+                        .then(Mono.defer(() -> {
+                            if (total >= minDonation) {
+                                store.setState(id, State.ACCEPTED);
+                                grantRole(user.getId(), whitelistRole);
+                                return save()
+                                        .then(actions.sendMessage(dm, "Congratulations! This amount qualifies for server access."));
+                            }
+                            return actions.sendMessage(dm, "Unfortunately, this is still not enough to qualify for server access.\n\nYou need at least " + CURRENCY_FMT.format(minDonation) + " across all donations to qualify.\n**Say anything in this chat to try again.**");
+                        })))
+                .switchIfEmpty(Mono.defer(() -> actions.sendMessage(dm, "Sorry, your donations could not be found through your linked Discord account right now. You keep the donor role, so please try again later.")))
+                .onErrorResume(DonationApi.UnavailableException.class, t -> actions.sendMessage(dm, "Sorry, donations can't be checked right now. You keep the donor role, so please try again later."));
+    }
+    
+    /**
+     * Finishes a verification which was deferred while the donation API was unavailable, and tells
+     * the user the result by DM. Users who are no longer waiting on a verification are skipped, and
+     * so are emails another user has verified with in the meantime. Fails if the API is still
+     * unavailable, so the verification stays queued.
+     */
+    public Mono<Message> completeDeferred(DeferredVerifications.Entry entry) {
+        long user = entry.getUser();
+        return lanes.submit(user, () -> {
+            State state = store.getUsers(user).getState(user);
+            if (state != State.PENDING && state != State.VERIFIED) {
+                return Mono.<Message>empty();
+            }
+            Function<String, Mono<Message>> reply = content -> actions.sendDirectMessage(Snowflake.of(user), content)
+                    .doOnError(t -> {
+                        SEND_ERRORS.increment();
+                        log.error("Could not send to private channel", t);
+                    })
+                    .onErrorResume(ClientException.class, $ -> Mono.empty());
+            long owner = store.getEmailOwner(entry.getEmail());
+            if (owner != 0 && owner != user) {
+                DUPLICATE_CLAIMS.increment();
+                log.info("Deferred email of user {} was claimed by {} in the meantime", user, owner);
+                return reply.apply(ALREADY_CLAIMED);
+            }
+            int tries = state == State.PENDING ? store.getUsers(user).getResets(user) : -1;
+            return verifyEmail(user, entry.getEmail(), tries, reply);
+        });
+    }
+    
+    /**
+     * @param email The email as the user typed it, which is what the API is asked for. Only the index
+     *        and cache keys are normalized.
+     */
     private Mono<Double> getTotalDonations(String email) {
-        try {
-            return HttpClient.create()
-                    .baseUrl(api)
-                    .headers(h -> h.add("Authorization", "Bearer " + key))
-                    .wiretap(true)
-                    .get()
-                    .uri("/donor/total?email=" + URLEncoder.encode(email, Charsets.US_ASCII.name()))
-                    .responseSingle((resp, content) -> resp.status() == HttpResponseStatus.OK ? content.asString() : Mono.empty())
-                    .map(s -> GSON.fromJson(s, JsonObject.class))
-                    .map(json -> json.getAsJsonObject().get("total").getAsDouble())
-                    .defaultIfEmpty(0.0);
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
-            return Mono.empty();
-        }
+        String key = DonorIndex.normalize(email);
+        return donorIndex.getTotal(key, minDonation, () -> emailTotals.get(key, () -> donationApi.getTotal(email.trim())));
     }
 
     private Mono<Double> getTotalDonations(User user) {
-        try {
-            return HttpClient.create()
-                    .baseUrl(api)
-                    .headers(h -> h.add("Authorization", "Bearer " + key))
-                    .wiretap(true)
-                    .get()
-                    .uri("/donors/fromdiscord?discord_id=" + URLEncoder.encode(user.getUsername() + '#' + user.getDiscriminator(), Charsets.US_ASCII.name()))
-                    .responseSingle((resp, content) -> resp.status() == HttpResponseStatus.OK ? content.asString() : Mono.empty())
-                    .map(s -> GSON.fromJson(s, JsonObject.class))
-                    .map(json -> json.getAsJsonObject().get("total").getAsDouble());
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
-            return Mono.empty();
-        }
+        return discordTotals.get(user.getId().asLong(), () -> donationApi.getTotal(user));
     }
     
+    /**
+     * Handles the reaction in the lane of the reacting user, after any of their events which arrived earlier.
+     */
     public Mono<ReactionAddEvent> onReactAdd(ReactionAddEvent event) {
-        if (event.getMessageId().equals(data.getMessage())
+        return lanes.submit(event.getUserId().asLong(), () -> onReactAddInternal(event));
+    }
+    
+    private Mono<ReactionAddEvent> onReactAddInternal(ReactionAddEvent event) {
+        if (event.getMessageId().equals(store.getData().getMessage())
                 && event.getEmoji().equals(react)
                 && !event.getUserId().equals(event.getClient().getSelfId().orElse(null)) 
-                && !data.getUserStates().containsKey(event.getUserId())) {
+                && !store.getUsers(event.getUserId().asLong()).contains(event.getUserId().asLong())) {
             return event.getUser()
                     .flatMap(u -> u.getPrivateChannel()
-                        .doOnError(t -> log.error("Could not get private channel", t))
+                        .doOnError(t -> {
+                            PRIVATE_CHANNEL_ERRORS.increment();
+                            log.error("Could not get private channel", t);
+                        })
                         .onErrorResume($ -> Mono.empty())
                         .flatMap(dm -> getTotalDonations(u)
-                            .doOnNext(d -> data.getUserStates().put(u.getId(), State.VERIFIED))
-                            .flatMap(total -> dm.createMessage("Donation amount: " + CURRENCY_FMT.format(total)).thenReturn(total))
+                            // Fall back to asking for an email rather than leaving the user without an answer
+                            .onErrorResume(DonationApi.UnavailableException.class, t -> Mono.empty())
+                            .doOnNext(d -> store.setState(u.getId().asLong(), State.VERIFIED))
+                            .flatMap(total -> actions.sendMessage(dm, "Donation amount: " + CURRENCY_FMT.format(total)).thenReturn(total))
                             .flatMap(total -> {
                                  if (total >= minDonation) {
-                                     data.getUserStates().put(u.getId(), State.ACCEPTED);
+                                     store.setState(u.getId().asLong(), State.ACCEPTED);
+                                     grantRole(u.getId(), whitelistRole);
                                      return save()
-                                             .then(u.asMember(guild)).flatMap(m -> m.addRole(whitelistRole))
-                                             .then(dm.createMessage("Congratulations! This amount qualifies for server access."));
+                                             .then(actions.sendMessage(dm, "Congratulations! This amount qualifies for server access."));
                                  } else {
-                                     data.getUserStates().put(u.getId(), State.VERIFIED);
-                                     return save().then(dm.createMessage("Unfortunately, this is not enough to qualify for server access. However, you have still been assigned the donor role!\n\nYou need at least " + CURRENCY_FMT.format(minDonation) + " across all donations to qualify.\n**Say anything in this chat to try again.**"));
+                                     store.setState(u.getId().asLong(), State.VERIFIED);
+                                     return save().then(actions.sendMessage(dm, "Unfortunately, this is not enough to qualify for server access. However, you have still been assigned the donor role!\n\nYou need at least " + CURRENCY_FMT.format(minDonation) + " across all donations to qualify.\n**Say anything in this chat to try again.**"));
                                  }
                             })
-                            .switchIfEmpty(Mono.fromRunnable(() -> data.getUserStates().put(u.getId(), State.PENDING))
-                                    .then(dm.createMessage("To verify your donation, please reply with the email you used to donate.")
-                                            .doOnError(t -> log.error("Could not send to private channel", t))
+                            .switchIfEmpty(Mono.fromRunnable(() -> store.setState(u.getId().asLong(), State.PENDING))
+                                    .then(actions.sendMessage(dm, "To verify your donation, please reply with the email you used to donate.")
+                                            .doOnError(t -> {
+                                                SEND_ERRORS.increment();
+                                                log.error("Could not send to private channel", t);
+                                            })
                                             .onErrorResume($ -> Mono.empty())))
                             .flatMap(this::thenSave)
                             .thenReturn(dm))
-                        .doOnError(t -> log.error("Could not get private channel", t))
+                        .doOnError(t -> {
+                            PRIVATE_CHANNEL_ERRORS.increment();
+                            log.error("Could not get private channel", t);
+                        })
                         .onErrorResume($ -> Mono.empty()))
                     .flatMap(this::thenSave)
                     .thenReturn(event);
@@ -245,8 +327,95 @@ public class LoveTropicsListener {
         return Mono.just(event);
     }
     
+    /**
+     * Checks the total of a user again without them asking, for when the minimum donation changes or
+     * they donate more after verifying. Verified users are checked against their verified email and
+     * pending users against every email they have tried. Runs in the lane of the user.
+     */
+    public Mono<ReverifyJob.Outcome> reverify(long user) {
+        // Only fails if the lane gave up on it, which is a failed check like any other
+        return lanes.submit(user, () -> reverifyInternal(user))
+                .onErrorReturn(ReverifyJob.Outcome.FAILED);
+    }
+    
+    private Mono<ReverifyJob.Outcome> reverifyInternal(long user) {
+        UserStore users = store.getUsers(user);
+        State state = users.getState(user);
+        String[] emails;
+        if (state == State.VERIFIED) {
+            String verified = users.getVerifiedEmail(user);
+            emails = verified == null ? new String[0] : new String[] { verified };
+        } else if (state == State.PENDING) {
+            emails = users.getAttemptedEmails(user);
+        } else {
+            return Mono.just(ReverifyJob.Outcome.UNCHANGED);
+        }
+        Snowflake id = Snowflake.of(user);
+        return Flux.fromArray(emails)
+                .filter(email -> {
+                    long owner = store.getEmailOwner(email);
+                    return owner == 0 || owner == user;
+                })
+                .concatMap(email -> {
+                    // The whole point is to catch new donations, so skip anything cached
+                    emailTotals.invalidate(email);
+                    return getTotalDonations(email).map(total -> Tuples.of(email, total));
+                })
+                .filter(found -> found.getT2() > 0)
+                .reduce((a, b) -> b.getT2() > a.getT2() ? b : a)
+                .flatMap(found -> {
+                    double total = found.getT2();
+                    if (total < minDonation && state != State.PENDING) {
+                        return Mono.just(ReverifyJob.Outcome.UNCHANGED);
+                    }
+                    // The owner was checked before the lookup, but another user may have claimed the email since
+                    if (!store.claimEmail(user, found.getT1())) {
+                        DUPLICATE_CLAIMS.increment();
+                        return Mono.just(ReverifyJob.Outcome.UNCHANGED);
+                    }
+                    if (total >= minDonation) {
+                        store.setState(user, State.ACCEPTED);
+                        grantRole(id, donorRole);
+                        grantRole(id, whitelistRole);
+                        return save()
+                                .then(actions.sendDirectMessage(id, "Your donations now add up to " + CURRENCY_FMT.format(total) + ", which qualifies for server access. Congratulations!")
+                                        .doOnError(t -> {
+                                            SEND_ERRORS.increment();
+                                            log.error("Could not send to private channel", t);
+                                        })
+                                        .onErrorResume($ -> Mono.empty()))
+                                .thenReturn(ReverifyJob.Outcome.ACCEPTED);
+                    }
+                    store.setState(user, State.VERIFIED);
+                    grantRole(id, donorRole);
+                    return save()
+                            .thenReturn(ReverifyJob.Outcome.VERIFIED);
+                })
+                .defaultIfEmpty(ReverifyJob.Outcome.UNCHANGED)
+                .onErrorResume(t -> {
+                    log.warn("Could not re-verify user {}: {}", user, t.toString());
+                    return Mono.just(ReverifyJob.Outcome.FAILED);
+                });
+    }
+    
+    /**
+     * Grants the role in the background. The lane of the user moves on without waiting for it, as
+     * the grant may be held back by the rate limit of the whole guild. A grant which fails for good
+     * is logged, and left for the role reconciler to fix.
+     */
+    private void grantRole(Snowflake user, Snowflake role) {
+        actions.addRole(guild, user, role).subscribe(null, t -> {
+            ROLE_ERRORS.increment();
+            log.error("Could not grant role {} to user {}", role.asLong(), user.asLong(), t);
+        });
+    }
+    
     private Mono<Void> save() {
-        return Mono.fromRunnable(() -> saveHelper.writeJson("data.json", data));
+        return store.save();
+    }
+    
+    public void flush() {
+        store.flush();
     }
     
     private <T> Mono<T> thenSave(T val) {
@@ -0,0 +1,236 @@
+package com.lovetropics.donations;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * A minimal metrics registry, written out in the Prometheus text format.
+ * <p>
+ * Metrics are usually created once and kept in static fields. Recording a value only touches
+ * {@link LongAdder}s and never allocates. Creating a metric with the same name and labels twice
+ * returns the existing one, and registering a gauge twice replaces the previous supplier.
+ */
+public final class Metrics {
+    
+    private enum Type {
+        COUNTER,
+        GAUGE,
+        HISTOGRAM,
+        ;
+    }
+    
+    private interface Sample {
+        
+        void write(Writer out, String name, String labels) throws IOException;
+    }
+    
+    private static class Family {
+        final Type type;
+        final String help;
+        final Map<String, Sample> samples = new TreeMap<>();
+        
+        Family(Type type, String help) {
+            this.type = type;
+            this.help = help;
+        }
+    }
+    
+    public static final class Counter implements Sample {
+        private final LongAdder value = new LongAdder();
+        
+        public void increment() {
+            value.increment();
+        }
+        
+        public void add(long amount) {
+            value.add(amount);
+        }
+        
+        public long get() {
+            return value.sum();
+        }
+        
+        @Override
+        public void write(Writer out, String name, String labels) throws IOException {
+            writeSample(out, name, labels, value.sum());
+        }
+    }
+    
+    public static final class Histogram implements Sample {
+        
+        private static final double[] BUCKETS = { 0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+        private static final long[] BUCKET_NANOS = new long[BUCKETS.length];
+        static {
+            for (int i = 0; i < BUCKETS.length; i++) {
+                BUCKET_NANOS[i] = (long) (BUCKETS[i] * TimeUnit.SECONDS.toNanos(1));
+            }
+        }
+        
+        private final LongAdder[] counts = new LongAdder[BUCKETS.length + 1];
+        private final LongAdder sumNanos = new LongAdder();
+        
+        private Histogram() {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+        
+        public void observeNanos(long nanos) {
+            int i = 0;
+            while (i < BUCKET_NANOS.length && nanos > BUCKET_NANOS[i]) {
+                i++;
+            }
+            counts[i].increment();
+            sumNanos.add(nanos);
+        }
+        
+        /**
+         * @param start A value previously returned by {@link System#nanoTime()}
+         */
+        public void observeSince(long start) {
+            observeNanos(System.nanoTime() - start);
+        }
+        
+        /**
+         * Records the time from each subscription to the mono until it terminates or is cancelled.
+         */
+        public <T> Mono<T> time(Mono<T> mono) {
+            return Mono.defer(() -> {
+                long start = System.nanoTime();
+                return mono.doFinally($ -> observeSince(start));
+            });
+        }
+        
+        public long getCount() {
+            long ret = 0;
+            for (LongAdder count : counts) {
+                ret += count.sum();
+            }
+            return ret;
+        }
+        
+        @Override
+        public void write(Writer out, String name, String labels) throws IOException {
+            String prefix = labels.isEmpty() ? "" : labels + ",";
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                cumulative += counts[i].sum();
+                writeSample(out, name + "_bucket", prefix + "le=\"" + BUCKETS[i] + "\"", cumulative);
+            }
+            cumulative += counts[BUCKETS.length].sum();
+            writeSample(out, name + "_bucket", prefix + "le=\"+Inf\"", cumulative);
+            writeSample(out, name + "_sum", labels, sumNanos.sum() / (double) TimeUnit.SECONDS.toNanos(1));
+            writeSample(out, name + "_count", labels, cumulative);
+        }
+    }
+    
+    private static final Map<String, Family> FAMILIES = new TreeMap<>();
+    
+    private Metrics() {}
+    
+    public static Counter counter(String name, String help, String... labels) {
+        return register(Type.COUNTER, name, help, labels, Counter::new);
+    }
+    
+    /**
+     * Exposes a count which is already tracked elsewhere.
+     */
+    public static void counter(String name, String help, DoubleSupplier value, String... labels) {
+        replace(Type.COUNTER, name, help, labels, (out, n, l) -> writeSample(out, n, l, value.getAsDouble()));
+    }
+    
+    public static Histogram histogram(String name, String help, String... labels) {
+        return register(Type.HISTOGRAM, name, help, labels, Histogram::new);
+    }
+    
+    public static void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        replace(Type.GAUGE, name, help, labels, (out, n, l) -> writeSample(out, n, l, value.getAsDouble()));
+    }
+    
+    private interface Factory<T extends Sample> {
+        
+        T create();
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static synchronized <T extends Sample> T register(Type type, String name, String help, String[] labels, Factory<T> factory) {
+        return (T) family(type, name, help).samples.computeIfAbsent(formatLabels(labels), $ -> factory.create());
+    }
+    
+    private static synchronized void replace(Type type, String name, String help, String[] labels, Sample sample) {
+        family(type, name, help).samples.put(formatLabels(labels), sample);
+    }
+    
+    private static Family family(Type type, String name, String help) {
+        Family ret = FAMILIES.computeIfAbsent(name, $ -> new Family(type, help));
+        if (ret.type != type) {
+            throw new IllegalArgumentException("Metric " + name + " is already registered as a " + ret.type);
+        }
+        return ret;
+    }
+    
+    private static String formatLabels(String[] labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be given as name/value pairs");
+        }
+        StringBuilder ret = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                ret.append(',');
+            }
+            ret.append(labels[i]).append("=\"")
+               .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+               .append('"');
+        }
+        return ret.toString();
+    }
+    
+    private static void writeSample(Writer out, String name, String labels, double value) throws IOException {
+        out.write(name);
+        if (!labels.isEmpty()) {
+            out.write('{');
+            out.write(labels);
+            out.write('}');
+        }
+        out.write(' ');
+        if (value == (long) value) {
+            out.write(Long.toString((long) value));
+        } else {
+            out.write(Double.toString(value));
+        }
+        out.write('\n');
+    }
+    
+    /**
+     * Writes every registered metric in the Prometheus text exposition format.
+     */
+    public static void write(Writer out) throws IOException {
+        List<Map.Entry<String, Family>> families;
+        synchronized (Metrics.class) {
+            families = new ArrayList<>(FAMILIES.entrySet());
+        }
+        for (Map.Entry<String, Family> entry : families) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            List<Map.Entry<String, Sample>> samples;
+            synchronized (Metrics.class) {
+                samples = new ArrayList<>(family.samples.entrySet());
+            }
+            out.write("# HELP " + name + " " + family.help + "\n");
+            out.write("# TYPE " + name + " " + family.type.name().toLowerCase(Locale.ROOT) + "\n");
+            for (Map.Entry<String, Sample> sample : samples) {
+                sample.getValue().write(out, name, sample.getKey());
+            }
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.lovetropics.donations;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.LongStream;
+
+import com.google.gson.Gson;
+import com.lovetropics.donations.UserStore.State;
+
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Re-checks the donation totals of every verified user, and every pending user who has tried an
+ * email, so that a lowered minimum or a later donation takes effect without them asking again.
+ * <p>
+ * Users are checked in order of their ID, a bounded amount at a time. The last checked ID is
+ * checkpointed to reverify.json, and a run which did not finish is resumed on startup.
+ * <p>
+ * While the donation API is unavailable the run is paused rather than failing every user. Users
+ * who fail anyway are kept in the checkpoint and checked again once the first pass is done.
+ */
+@Slf4j
+public class ReverifyJob {
+    
+    public enum Outcome {
+        UNCHANGED,
+        VERIFIED,
+        ACCEPTED,
+        FAILED,
+        ;
+    }
+    
+    @Value
+    private static class Checkpoint {
+        long after;
+        /** Distinct users checked, so retries of failed users are not counted again. */
+        int checked;
+        int verified;
+        int accepted;
+        /** Users whose last check failed, to be checked again. Null in checkpoints from older versions. */
+        long[] failed;
+        boolean finished;
+        
+        long[] getFailed() {
+            return failed == null ? new long[0] : failed;
+        }
+        
+        Checkpoint next(long user, Outcome outcome) {
+            long[] prev = getFailed();
+            long[] next = Arrays.stream(prev).filter(id -> id != user).toArray();
+            if (outcome == Outcome.FAILED) {
+                next = Arrays.copyOf(next, next.length + 1);
+                next[next.length - 1] = user;
+            }
+            // Only users past the last one checked are new, anything else is a retry
+            return new Checkpoint(Math.max(after, user), checked + (user > after ? 1 : 0),
+                    verified + (outcome == Outcome.VERIFIED ? 1 : 0),
+                    accepted + (outcome == Outcome.ACCEPTED ? 1 : 0),
+                    next, false);
+        }
+        
+        Checkpoint finish() {
+            return new Checkpoint(after, checked, verified, accepted, failed, true);
+        }
+    }
+    
+    private static final String FILE = "reverify.json";
+    private static final Duration PAUSE_POLL = Duration.ofSeconds(5);
+    
+    private static final Metrics.Counter[] OUTCOMES = new Metrics.Counter[Outcome.values().length];
+    static {
+        for (Outcome outcome : Outcome.values()) {
+            OUTCOMES[outcome.ordinal()] = Metrics.counter("dv_reverify_users_total", "Users checked by the re-verification job", "outcome", outcome.name().toLowerCase(Locale.ROOT));
+        }
+    }
+    
+    private final LoveTropicsListener listener;
+    private final StateStore store;
+    private final DonationApi donationApi;
+    private final int concurrency;
+    private final Duration checkpointInterval;
+    private final SaveHelper<Checkpoint> saveHelper;
+    
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicBoolean paused = new AtomicBoolean();
+    private volatile Checkpoint progress;
+    private volatile int remaining;
+    
+    public ReverifyJob(File folder, LoveTropicsListener listener, StateStore store, DonationApi donationApi, int concurrency, Duration checkpointInterval) {
+        this.listener = listener;
+        this.store = store;
+        this.donationApi = donationApi;
+        this.concurrency = concurrency;
+        this.checkpointInterval = checkpointInterval;
+        this.saveHelper = new SaveHelper<>(folder, new Gson(), null);
+    }
+    
+    /**
+     * Continues a run which was interrupted by a restart, if there is one.
+     *
+     * @return True if a run was resumed
+     */
+    public boolean resume() {
+        Checkpoint saved = saveHelper.fromJson(FILE, Checkpoint.class);
+        if (saved == null || saved.isFinished()) {
+            return false;
+        }
+        log.info("Resuming re-verification after user {}, {} users already checked", saved.getAfter(), saved.getChecked());
+        return run(saved);
+    }
+    
+    /**
+     * Starts a new run over all users.
+     *
+     * @return False if a run is already in progress
+     */
+    public boolean start() {
+        return run(new Checkpoint(0, 0, 0, 0, new long[0], false));
+    }
+    
+    private boolean run(Checkpoint from) {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        // Users who failed before the restart go first, as they are no longer after the checkpoint
+        long[] ids = LongStream.concat(Arrays.stream(from.getFailed()), Arrays.stream(candidates(from.getAfter()))).toArray();
+        progress = from;
+        remaining = ids.length;
+        log.info("Re-verifying {} users, {} at a time", ids.length, concurrency);
+        check(ids)
+                .then(Mono.defer(() -> {
+                    long[] failed = progress.getFailed();
+                    if (failed.length > 0) {
+                        log.info("Re-verifying {} users which failed", failed.length);
+                        remaining = failed.length;
+                    }
+                    return check(failed);
+                }))
+                .doOnSuccess($ -> {
+                    progress = progress.finish();
+                    saveHelper.writeJsonLater(FILE, progress, Duration.ZERO);
+                    log.info("Re-verification finished: {}", getStatus());
+                })
+                .doOnError(t -> log.error("Re-verification stopped, it will resume from the last checkpoint on restart", t))
+                .doFinally($ -> running.set(false))
+                .subscribe();
+        return true;
+    }
+    
+    private Mono<Void> check(long[] ids) {
+        return Flux.range(0, ids.length)
+                .flatMapSequential(i -> awaitDonationApi().then(listener.reverify(ids[i])), concurrency)
+                .index()
+                .doOnNext(t -> checkpoint(ids[t.getT1().intValue()], t.getT2()))
+                .then();
+    }
+    
+    /**
+     * @return A mono which completes once the donation API is no longer marked unavailable
+     */
+    private Mono<Void> awaitDonationApi() {
+        return Mono.defer(() -> {
+            if (!donationApi.isUnavailable()) {
+                return Mono.empty();
+            }
+            if (paused.compareAndSet(false, true)) {
+                log.warn("Re-verification paused while the donation API is unavailable");
+            }
+            return Flux.interval(PAUSE_POLL)
+                    .filter($ -> !donationApi.isUnavailable())
+                    .next()
+                    .doOnNext($ -> {
+                        if (paused.compareAndSet(true, false)) {
+                            log.info("Re-verification resumed");
+                        }
+                    })
+                    .then();
+        });
+    }
+    
+    /**
+     * Results arrive in the order users were submitted, so everything up to this user is done. Failed
+     * users are recorded in the checkpoint, so moving past them does not lose them.
+     */
+    private void checkpoint(long user, Outcome outcome) {
+        OUTCOMES[outcome.ordinal()].increment();
+        progress = progress.next(user, outcome);
+        remaining--;
+        saveHelper.writeJsonLater(FILE, progress, checkpointInterval);
+        if (progress.getChecked() % 1000 == 0) {
+            log.info("Re-verification progress: {}", getStatus());
+        }
+    }
+    
+    private long[] candidates(long after) {
+        LongStream.Builder ret = LongStream.builder();
+        store.forEach((id, state, verifiedEmail, attemptedEmails, resets) -> {
+            if (id > after && ((state == State.VERIFIED && verifiedEmail != EmailTable.NONE) || (state == State.PENDING && attemptedEmails.length > 0))) {
+                ret.add(id);
+            }
+        });
+        return ret.build().sorted().toArray();
+    }
+    
+    public boolean isRunning() {
+        return running.get();
+    }
+    
+    public String getStatus() {
+        Checkpoint p = progress;
+        if (p == null) {
+            return "not started";
+        }
+        return String.format("%s, %d checked, %d remaining, %d newly verified, %d newly accepted, %d failed",
+                isRunning() ? paused.get() ? "paused" : "running" : p.isFinished() ? "finished" : "stopped",
+                p.getChecked(), remaining, p.getVerified(), p.getAccepted(), p.getFailed().length);
+    }
+    
+    /**
+     * Writes the latest checkpoint immediately. Call this before shutdown.
+     */
+    public void flush() {
+        saveHelper.flush();
+    }
+}
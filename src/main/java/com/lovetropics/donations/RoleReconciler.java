@@ -0,0 +1,173 @@
+package com.lovetropics.donations;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.lovetropics.donations.UserStore.State;
+
+import discord4j.core.DiscordClient;
+import discord4j.core.object.entity.Guild;
+import discord4j.core.object.entity.Member;
+import discord4j.core.object.util.Snowflake;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Brings the donor and whitelist roles of guild members back in line with their stored state, for
+ * when a role grant failed after the state was saved, or a member left and rejoined.
+ * <p>
+ * Members are streamed page by page and checked a bounded amount at a time, and fixes go through
+ * {@link DiscordActions}, so a large guild never has to be held in memory. Missing roles are always
+ * added. Roles are only removed when enabled, and only from members the bot has a state for, since
+ * moderators may grant them by hand.
+ */
+@Slf4j
+public class RoleReconciler {
+    
+    @Value
+    public static class Report {
+        long members;
+        long added;
+        long removed;
+        long failed;
+        Duration took;
+    }
+    
+    private static class Tally {
+        final LongAdder members = new LongAdder();
+        final LongAdder added = new LongAdder();
+        final LongAdder removed = new LongAdder();
+        final LongAdder failed = new LongAdder();
+    }
+    
+    private static final Metrics.Counter ADDED = Metrics.counter("dv_reconcile_roles_total", "Roles fixed by reconciliation", "action", "added");
+    private static final Metrics.Counter REMOVED = Metrics.counter("dv_reconcile_roles_total", "Roles fixed by reconciliation", "action", "removed");
+    private static final Metrics.Counter FAILED = Metrics.counter("dv_reconcile_roles_total", "Roles fixed by reconciliation", "action", "failed");
+    private static final Metrics.Histogram RUN_TIME = Metrics.histogram("dv_reconcile_seconds", "Time taken to reconcile the whole guild");
+    
+    private final DiscordClient client;
+    private final DiscordActions actions;
+    private final StateStore store;
+    private final Snowflake guild;
+    private final Snowflake donorRole;
+    private final Snowflake whitelistRole;
+    private final int concurrency;
+    private final boolean remove;
+    
+    private final AtomicBoolean running = new AtomicBoolean();
+    private volatile Report lastReport;
+    
+    public RoleReconciler(DiscordClient client, DiscordActions actions, StateStore store, Snowflake guild, Snowflake donorRole, Snowflake whitelistRole, int concurrency, boolean remove) {
+        this.client = client;
+        this.actions = actions;
+        this.store = store;
+        this.guild = guild;
+        this.donorRole = donorRole;
+        this.whitelistRole = whitelistRole;
+        this.concurrency = concurrency;
+        this.remove = remove;
+    }
+    
+    /**
+     * Reconciles immediately, and then once every {@code interval}. Runs which would overlap a
+     * running one are skipped.
+     */
+    public Disposable start(Duration interval) {
+        return Flux.interval(Duration.ZERO, interval)
+                .onBackpressureDrop()
+                .concatMap($ -> run()
+                        .doOnError(t -> log.error("Failed to reconcile roles", t))
+                        .onErrorResume(t -> Mono.empty()), 1)
+                .subscribe();
+    }
+    
+    /**
+     * Checks every member of the guild.
+     *
+     * @return What was fixed, or empty if a run was already in progress
+     */
+    public Mono<Report> run() {
+        return Mono.defer(() -> {
+            if (!running.compareAndSet(false, true)) {
+                return Mono.empty();
+            }
+            long start = System.nanoTime();
+            Tally tally = new Tally();
+            return client.getGuildById(guild)
+                    .flatMapMany(Guild::getMembers)
+                    .limitRate(1000)
+                    .flatMap(member -> reconcile(member, tally), concurrency)
+                    .then(Mono.fromCallable(() -> new Report(tally.members.sum(), tally.added.sum(), tally.removed.sum(), tally.failed.sum(), Duration.ofNanos(System.nanoTime() - start))))
+                    .doOnNext(report -> {
+                        RUN_TIME.observeSince(start);
+                        lastReport = report;
+                        log.info("Reconciled roles of {} members in {}s: {} added, {} removed, {} failed",
+                                report.getMembers(), report.getTook().getSeconds(), report.getAdded(), report.getRemoved(), report.getFailed());
+                    })
+                    .doFinally($ -> running.set(false));
+        });
+    }
+    
+    /**
+     * Checks a single member, such as one who just joined.
+     */
+    public Mono<Void> reconcile(Member member) {
+        return reconcile(member, new Tally());
+    }
+    
+    private Mono<Void> reconcile(Member member, Tally tally) {
+        tally.members.increment();
+        long id = member.getId().asLong();
+        UserStore users = store.getUsers(id);
+        boolean known = users.contains(id);
+        State state = users.getState(id);
+        Set<Snowflake> roles = member.getRoleIds();
+        return fix(member.getId(), roles, donorRole, state == State.VERIFIED || state == State.ACCEPTED, known, tally)
+                .then(fix(member.getId(), roles, whitelistRole, state == State.ACCEPTED || state == State.WHITELISTED, known, tally));
+    }
+    
+    private Mono<Void> fix(Snowflake member, Set<Snowflake> roles, Snowflake role, boolean expected, boolean known, Tally tally) {
+        boolean has = roles.contains(role);
+        Mono<Void> ret;
+        LongAdder count;
+        Metrics.Counter metric;
+        if (expected && !has) {
+            ret = actions.addRole(guild, member, role);
+            count = tally.added;
+            metric = ADDED;
+        } else if (!expected && has && remove && known) {
+            ret = actions.removeRole(guild, member, role);
+            count = tally.removed;
+            metric = REMOVED;
+        } else {
+            return Mono.empty();
+        }
+        return ret
+                .doOnSuccess($ -> {
+                    count.increment();
+                    metric.increment();
+                })
+                .onErrorResume(t -> {
+                    log.warn("Could not fix role {} of member {}: {}", role.asLong(), member.asLong(), t.toString());
+                    tally.failed.increment();
+                    FAILED.increment();
+                    return Mono.empty();
+                });
+    }
+    
+    public boolean isRunning() {
+        return running.get();
+    }
+    
+    /**
+     * @return The result of the last finished run, or null if none has finished yet
+     */
+    public Report getLastReport() {
+        return lastReport;
+    }
+}
@@ -1,22 +1,38 @@
 package com.lovetropics.donations;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.Reader;
+import java.io.Writer;
 import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.annotation.Nullable;
 
 import org.apache.commons.io.FileUtils;
 
+import com.google.common.collect.Maps;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 
 import lombok.RequiredArgsConstructor;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
 
 @RequiredArgsConstructor
 @Slf4j
@@ -26,6 +42,14 @@ public class SaveHelper<T> {
 	private final Gson gson;
 	private final @Nullable T defaultValue;
 	
+	private static final int BUFFER_SIZE = 1 << 16;
+	
+	private static final Metrics.Histogram WRITE_TIME = Metrics.histogram("dv_save_write_seconds", "Time taken to write a file to disk");
+	private static final Metrics.Counter WRITE_REQUESTS = Metrics.counter("dv_save_requests_total", "Deferred writes requested, including those merged into an already scheduled write");
+	
+	private final Map<String, DeferredWrite> deferredWrites = Maps.newConcurrentMap();
+	private final Scheduler writeScheduler = Schedulers.newSingle("Save Helper", true);
+	
 	@SneakyThrows
 	public boolean checkExists(File f, boolean create) {
 	    boolean exists = f.exists();
@@ -45,7 +69,7 @@ public class SaveHelper<T> {
 	public Reader getReader(String file) {
 		File f = getFile(file);
 		if (checkExists(f, false)) {
-		    return new FileReader(f);
+		    return new BufferedReader(new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8), BUFFER_SIZE);
 		} else {
 		    return new Reader() {
                 
@@ -72,8 +96,8 @@ public class SaveHelper<T> {
     }
 
     public T fromJson(String file, TypeToken<T> type) {
-        try {
-            T ret = gson.fromJson(getReader(file), type.getType());
+        try (Reader reader = getReader(file)) {
+            T ret = gson.fromJson(reader, type.getType());
             if (ret == null) {
                 ret = defaultValue;
             }
@@ -99,14 +123,69 @@ public class SaveHelper<T> {
         writeJson(file, toWrite, type.getType());
     }
 
+    /**
+     * Writes the file to a temporary sibling first, syncs it to disk, and then renames it over the
+     * real file, so a crash mid-write can never leave a truncated file behind.
+     */
     @SneakyThrows
     private void writeJson(String file, T toWrite, Type type) {
-        FileWriter fw = getWriter(file);
-        try {
-            fw.write(gson.toJson(toWrite, type));
-        } finally {
-            fw.flush();
-            fw.close();
+        long start = System.nanoTime();
+        File target = getFile(file);
+        File temp = getFile(file + ".tmp");
+        target.getParentFile().mkdirs();
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+            gson.toJson(toWrite, type, writer);
+            writer.flush();
+            out.getFD().sync();
+        }
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        WRITE_TIME.observeSince(start);
+    }
+    
+    /**
+     * Marks the file as dirty and schedules a write no later than {@code maxDelay} from now. Any
+     * further calls for the same file before the write runs are merged into it.
+     */
+    public void writeJsonLater(String file, T toWrite, Duration maxDelay) {
+        writeLater(file, maxDelay, () -> writeJson(file, toWrite));
+    }
+    
+    /**
+     * Same as {@link #writeJsonLater(String, Object, Duration)}, but runs an arbitrary write task.
+     * Only the most recently submitted task for a given file is run.
+     */
+    public void writeLater(String file, Duration maxDelay, Runnable write) {
+        WRITE_REQUESTS.increment();
+        DeferredWrite deferred = deferredWrites.computeIfAbsent(file, DeferredWrite::new);
+        deferred.task = write;
+        if (deferred.dirty.compareAndSet(false, true)) {
+            writeScheduler.schedule(deferred::run, maxDelay.toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /**
+     * Immediately runs all pending deferred writes on the calling thread. Call this before shutdown.
+     */
+    public void flush() {
+        deferredWrites.values().forEach(DeferredWrite::run);
+    }
+    
+    @RequiredArgsConstructor
+    private static class DeferredWrite {
+        private final String file;
+        private final AtomicBoolean dirty = new AtomicBoolean();
+        private volatile Runnable task;
+        
+        synchronized void run() {
+            // Clear the flag before writing, so that changes made during the write schedule another one
+            if (dirty.compareAndSet(true, false)) {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    log.error("Failed to write file {}", file, e);
+                }
+            }
         }
     }
 }
@@ -1,26 +1,34 @@
 package com.lovetropics.donations;
 
-import java.lang.reflect.Type;
+import java.io.IOException;
 
-import com.google.gson.JsonDeserializationContext;
-import com.google.gson.JsonDeserializer;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonParseException;
-import com.google.gson.JsonPrimitive;
-import com.google.gson.JsonSerializationContext;
-import com.google.gson.JsonSerializer;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 import discord4j.core.object.util.Snowflake;
 
-public class SnowflakeTypeAdapter implements JsonSerializer<Snowflake>, JsonDeserializer<Snowflake> {
+public class SnowflakeTypeAdapter extends TypeAdapter<Snowflake> {
 
     @Override
-    public JsonElement serialize(Snowflake src, Type typeOfSrc, JsonSerializationContext context) {
-        return new JsonPrimitive(src.asLong());
+    public void write(JsonWriter out, Snowflake src) throws IOException {
+        if (src == null) {
+            out.nullValue();
+        } else {
+            out.value(src.asLong());
+        }
     }
 
     @Override
-    public Snowflake deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context) throws JsonParseException {
-        return Snowflake.of(json.getAsLong());
+    public Snowflake read(JsonReader in) throws IOException {
+        JsonToken token = in.peek();
+        if (token == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        } else if (token == JsonToken.STRING) {
+            return Snowflake.of(Long.parseUnsignedLong(in.nextString()));
+        }
+        return Snowflake.of(in.nextLong());
     }
 }
@@ -0,0 +1,384 @@
+package com.lovetropics.donations;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nullable;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.lovetropics.donations.UserStore.State;
+
+import discord4j.core.object.util.Snowflake;
+import lombok.SneakyThrows;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Mono;
+
+/**
+ * Owns the persisted {@link Data}, split into partitions by user ID. Each partition has its own
+ * data.json and data.journal, in the root folder when there is one partition and in data-I-of-N
+ * folders otherwise. The "partitions" file records which layout is current. Every change is
+ * appended to the journal of its partition as it happens, and a journal is folded back into its
+ * data.json at most {@code compactDelay} after a save, so a save only rewrites the partitions
+ * which changed.
+ * <p>
+ * Global fields such as the verification message live in the first partition. Reads which are not
+ * about one user, such as looking up an email, ask every partition.
+ */
+@Slf4j
+public class StateStore {
+    
+    @Value
+    private static class Change {
+        enum Type {
+            STATE,
+            VERIFIED_EMAIL,
+            ATTEMPTED_EMAIL,
+            RESETS,
+            ;
+        }
+        
+        Type type;
+        long user;
+        @Nullable State state;
+        @Nullable String email;
+        int resets;
+        
+        void apply(UserStore users) {
+            switch (type) {
+                case STATE:
+                    users.setState(user, state);
+                    break;
+                case VERIFIED_EMAIL:
+                    users.setVerifiedEmail(user, email);
+                    break;
+                case ATTEMPTED_EMAIL:
+                    users.addAttemptedEmail(user, email);
+                    break;
+                case RESETS:
+                    users.setResets(user, resets);
+                    break;
+            }
+        }
+    }
+    
+    static final Gson GSON = new GsonBuilder()
+            .registerTypeAdapter(Snowflake.class, new SnowflakeTypeAdapter())
+            .registerTypeAdapter(Data.class, new DataTypeAdapter())
+            .create();
+    
+    private static final Metrics.Counter[] TRANSITIONS = new Metrics.Counter[State.values().length];
+    static {
+        for (State state : State.values()) {
+            TRANSITIONS[state.ordinal()] = Metrics.counter("dv_state_transitions_total", "Users moved into each state", "state", state.name());
+        }
+    }
+    
+    private static final Metrics.Counter JOURNAL_APPENDS = Metrics.counter("dv_journal_appends_total", "Records appended to the state journal");
+    
+    private static class Partition {
+        final File folder;
+        final SaveHelper<Data> saveHelper;
+        final Journal<Change> journal;
+        final Data data;
+        final AtomicBoolean dirty = new AtomicBoolean();
+        
+        Partition(File folder) {
+            this.folder = folder;
+            this.saveHelper = new SaveHelper<>(folder, GSON, new Data());
+            this.journal = new Journal<>(new File(folder, "data.journal"), GSON, Change.class);
+            this.data = saveHelper.fromJson("data.json", Data.class);
+            int replayed = journal.replay(change -> change.apply(data.getUsers()));
+            if (replayed > 0) {
+                log.info("Replayed {} journal records on top of {}", replayed, new File(folder, "data.json"));
+            }
+        }
+        
+        void append(Change change) {
+            journal.append(change);
+            dirty.set(true);
+            JOURNAL_APPENDS.increment();
+        }
+        
+        void compact() {
+            dirty.set(false);
+            journal.compact(() -> saveHelper.writeJson("data.json", data));
+        }
+    }
+    
+    private static final String PARTITIONS_FILE = "partitions";
+    private static final String[] DATA_FILES = { "data.json", "data.journal", "data.journal.old" };
+    
+    private final Partition[] partitions;
+    private final Duration compactDelay;
+    // Emails are owned across partitions, so claims are made one at a time
+    private final Object claimLock = new Object();
+    
+    public StateStore(File folder, Duration compactDelay) {
+        this(folder, 1, compactDelay);
+    }
+    
+    /**
+     * If the folder holds a different amount of partitions, every user is moved into the new layout
+     * first, and the old files are kept with a .migrated suffix.
+     */
+    public StateStore(File folder, int partitionCount, Duration compactDelay) {
+        this.compactDelay = compactDelay;
+        int stored = storedPartitions(folder);
+        this.partitions = stored == partitionCount ? open(folder, partitionCount) : migrate(folder, stored, partitionCount);
+        Metrics.gauge("dv_users", "Users with a verification state", this::size);
+        Metrics.gauge("dv_state_partitions", "Partitions of the stored user state", () -> partitions.length);
+    }
+    
+    private static File partitionFolder(File folder, int partition, int count) {
+        return count == 1 ? folder : new File(folder, "data-" + partition + "-of-" + count);
+    }
+    
+    /**
+     * @return The amount of partitions in the current layout. Folders from before partitioning have one.
+     */
+    @SneakyThrows
+    private static int storedPartitions(File folder) {
+        File marker = new File(folder, PARTITIONS_FILE);
+        if (!marker.exists()) {
+            return 1;
+        }
+        return Integer.parseInt(new String(Files.readAllBytes(marker.toPath()), StandardCharsets.UTF_8).trim());
+    }
+    
+    private static Partition[] open(File folder, int count) {
+        Partition[] ret = new Partition[count];
+        for (int i = 0; i < count; i++) {
+            ret[i] = new Partition(partitionFolder(folder, i, count));
+        }
+        return ret;
+    }
+    
+    /**
+     * Each layout has its own folders, so the old one is left untouched until the new one is complete
+     * and recorded as current. A crash at any point leaves one complete layout to start from.
+     */
+    @SneakyThrows
+    private static Partition[] migrate(File folder, int from, int to) {
+        log.info("Moving user state from {} to {} partitions", from, to);
+        Partition[] old = open(folder, from);
+        for (int i = 0; i < to; i++) {
+            // Leftovers of an earlier migration which never finished
+            File target = partitionFolder(folder, i, to);
+            for (String name : DATA_FILES) {
+                Files.deleteIfExists(new File(target, name).toPath());
+            }
+        }
+        Partition[] ret = open(folder, to);
+        ret[0].data.setMessage(old[0].data.getMessage());
+        for (Partition partition : old) {
+            UserStore source = partition.data.getUsers();
+            source.forEach((id, state, verifiedEmail, attemptedEmails, resets) -> {
+                UserStore target = ret[partition(id, to)].data.getUsers();
+                if (state != null) {
+                    target.setState(id, state);
+                }
+                for (int email : attemptedEmails) {
+                    target.addAttemptedEmail(id, source.getEmail(email));
+                }
+                if (verifiedEmail != EmailTable.NONE) {
+                    target.setVerifiedEmail(id, source.getEmail(verifiedEmail));
+                }
+                if (resets != 0) {
+                    target.setResets(id, resets);
+                }
+            });
+        }
+        for (Partition partition : ret) {
+            partition.saveHelper.writeJson("data.json", partition.data);
+        }
+        
+        folder.mkdirs();
+        File marker = new File(folder, PARTITIONS_FILE);
+        File temp = new File(folder, PARTITIONS_FILE + ".tmp");
+        Files.write(temp.toPath(), Integer.toString(to).getBytes(StandardCharsets.UTF_8));
+        Files.move(temp.toPath(), marker.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        
+        for (Partition partition : old) {
+            partition.journal.close();
+            for (String name : DATA_FILES) {
+                File file = new File(partition.folder, name);
+                if (file.exists()) {
+                    Files.move(file.toPath(), new File(partition.folder, name + ".migrated").toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+        log.info("Moved {} users into {} partitions", Arrays.stream(ret).mapToInt(p -> p.data.getUsers().size()).sum(), to);
+        return ret;
+    }
+    
+    /**
+     * @return The partition this user belongs to, out of {@code count}. Stable for a given count.
+     */
+    static int partition(long user, int count) {
+        return UserHash.spread(user, count);
+    }
+    
+    private Partition partitionOf(long user) {
+        return partitions[partition(user, partitions.length)];
+    }
+    
+    public int getPartitionCount() {
+        return partitions.length;
+    }
+    
+    /**
+     * @return The data of the first partition, which holds the global fields
+     */
+    public Data getData() {
+        return partitions[0].data;
+    }
+    
+    public void setMessage(Snowflake message) {
+        partitions[0].data.setMessage(message);
+        partitions[0].dirty.set(true);
+    }
+    
+    /**
+     * @return The users of the partition this user belongs to
+     */
+    public UserStore getUsers(long user) {
+        return partitionOf(user).data.getUsers();
+    }
+    
+    /**
+     * Visits every known user across all partitions, one partition at a time. Email IDs passed to the
+     * visitor belong to the partition of the user, see {@link #getUsers(long)}.
+     */
+    public void forEach(UserStore.Visitor visitor) {
+        for (Partition partition : partitions) {
+            partition.data.getUsers().forEach(visitor);
+        }
+    }
+    
+    /**
+     * @return The amount of users with a state, across all partitions
+     */
+    public int size() {
+        int ret = 0;
+        for (Partition partition : partitions) {
+            ret += partition.data.getUsers().size();
+        }
+        return ret;
+    }
+    
+    /**
+     * @return The user who verified with this email in any partition, or 0 if nobody has
+     */
+    public long getEmailOwner(String email) {
+        for (Partition partition : partitions) {
+            long owner = partition.data.getUsers().getEmailOwner(email);
+            if (owner != 0) {
+                return owner;
+            }
+        }
+        return 0;
+    }
+    
+    /**
+     * Finds the user who verified with, or is waiting on, this email. Users can move on from an email,
+     * so callers must check the user still matches.
+     *
+     * @return The owner of the email, or otherwise a user who tried it, or 0 if there is none
+     */
+    public long getUserByEmail(String email) {
+        long owner = getEmailOwner(email);
+        if (owner != 0) {
+            return owner;
+        }
+        for (Partition partition : partitions) {
+            long user = partition.data.getUsers().findUserByEmail(email);
+            if (user != 0) {
+                return user;
+            }
+        }
+        return 0;
+    }
+    
+    public void setState(long user, State state) {
+        Partition partition = partitionOf(user);
+        partition.data.getUsers().setState(user, state);
+        partition.append(new Change(Change.Type.STATE, user, state, null, 0));
+        TRANSITIONS[state.ordinal()].increment();
+    }
+    
+    public void setVerifiedEmail(long user, String email) {
+        Partition partition = partitionOf(user);
+        partition.data.getUsers().setVerifiedEmail(user, email);
+        partition.append(new Change(Change.Type.VERIFIED_EMAIL, user, null, email, 0));
+    }
+    
+    /**
+     * Makes this user the owner of the email, unless a user in any partition owns it already. Two
+     * users claiming the same email at once cannot both win, unlike checking
+     * {@link #getEmailOwner(String)} before {@link #setVerifiedEmail(long, String)}.
+     *
+     * @return Whether this user now owns the email
+     */
+    public boolean claimEmail(long user, String email) {
+        synchronized (claimLock) {
+            long owner = getEmailOwner(email);
+            if (owner != 0 && owner != user) {
+                return false;
+            }
+            Partition partition = partitionOf(user);
+            if (!partition.data.getUsers().claimEmail(user, email)) {
+                return false;
+            }
+            partition.append(new Change(Change.Type.VERIFIED_EMAIL, user, null, email, 0));
+            return true;
+        }
+    }
+    
+    public void addAttemptedEmail(long user, String email) {
+        Partition partition = partitionOf(user);
+        partition.data.getUsers().addAttemptedEmail(user, email);
+        partition.append(new Change(Change.Type.ATTEMPTED_EMAIL, user, null, email, 0));
+    }
+    
+    /**
+     * @return The new value of the reset counter
+     */
+    public int bumpResets(long user, int amount) {
+        Partition partition = partitionOf(user);
+        int ret = partition.data.getUsers().addResets(user, amount, 999);
+        if (amount != 0) {
+            partition.append(new Change(Change.Type.RESETS, user, null, null, ret));
+        }
+        return ret;
+    }
+    
+    /**
+     * Every change is already in the journal by the time this runs, so this only schedules folding
+     * the journals of changed partitions back into their data.json.
+     */
+    public Mono<Void> save() {
+        return Mono.fromRunnable(() -> {
+            for (Partition partition : partitions) {
+                if (partition.dirty.get()) {
+                    partition.saveHelper.writeLater("data.json", compactDelay, partition::compact);
+                }
+            }
+        });
+    }
+    
+    /**
+     * Runs any pending compaction immediately.
+     */
+    public void flush() {
+        for (Partition partition : partitions) {
+            partition.saveHelper.flush();
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.lovetropics.donations;
+
+/**
+ * The hash of a user ID, shared by everything that spreads users out: lanes, state partitions and
+ * the {@link UserStore} table. Discord IDs are timestamps in the high bits and counters in the low
+ * ones, so they are multiplied by 2^64 divided by the golden ratio to mix every bit into the top.
+ */
+final class UserHash {
+    
+    private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+    
+    private UserHash() {}
+    
+    static long mix(long user) {
+        return user * GOLDEN;
+    }
+    
+    /**
+     * Picks one of {@code count} lanes or partitions from the low bits of the folded hash. Must not
+     * change, as partition files on disk are laid out by it.
+     */
+    static int spread(long user, int count) {
+        long h = mix(user);
+        return Math.floorMod((int) (h ^ (h >>> 32)), count);
+    }
+    
+    /**
+     * Picks a slot in a table of {@code 2^bits} from the top bits of the hash. These are independent
+     * of {@link #spread}, so the users of one partition still use the whole table of that partition.
+     */
+    static int slot(long user, int bits) {
+        return (int) (mix(user) >>> (64 - bits));
+    }
+}
@@ -0,0 +1,79 @@
+package com.lovetropics.donations;
+
+import java.time.Duration;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.UnicastProcessor;
+
+/**
+ * Runs tasks in a fixed set of lanes chosen by user ID. Tasks in the same lane run one after
+ * another, in the order they were submitted, so two events for the same user can never interleave.
+ * Different lanes run independently of each other, and no lock is shared between them. A task
+ * which takes longer than the task timeout fails with a {@link TimeoutException}, so that one
+ * stalled call cannot hold up every later task in its lane.
+ */
+@Slf4j
+public class UserLanes {
+    
+    private static final Metrics.Counter TIMEOUTS = Metrics.counter("dv_lane_timeouts_total", "Lane tasks given up on after the task timeout");
+    
+    private final FluxSink<Mono<Void>>[] lanes;
+    private final Duration taskTimeout;
+    private final AtomicInteger queued = new AtomicInteger();
+    
+    /**
+     * @param taskTimeout How long a single task may run before the lane moves on without it
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public UserLanes(int count, Duration taskTimeout) {
+        this.taskTimeout = taskTimeout;
+        lanes = new FluxSink[count];
+        for (int i = 0; i < count; i++) {
+            UnicastProcessor<Mono<Void>> lane = UnicastProcessor.create();
+            lanes[i] = lane.sink();
+            lane.concatMap(Function.identity()).subscribe();
+        }
+    }
+    
+    private int lane(long user) {
+        return UserHash.spread(user, lanes.length);
+    }
+    
+    /**
+     * Queues a task in the lane of this user. The task is only created once every task submitted
+     * before it in the same lane has finished.
+     *
+     * @return A mono which completes with the result of the task
+     */
+    public <T> Mono<T> submit(long user, Supplier<? extends Mono<T>> task) {
+        return Mono.create(sink -> {
+            queued.incrementAndGet();
+            lanes[lane(user)].next(Mono.defer(() -> {
+                        queued.decrementAndGet();
+                        return task.get();
+                    })
+                    .timeout(taskTimeout)
+                    .doOnError(TimeoutException.class, t -> {
+                        TIMEOUTS.increment();
+                        log.warn("Task for user {} took longer than {}ms, moving on", user, taskTimeout.toMillis());
+                    })
+                    .doOnSuccess(sink::success)
+                    .doOnError(sink::error)
+                    .onErrorResume(t -> Mono.empty())
+                    .then());
+        });
+    }
+    
+    /**
+     * @return The amount of tasks waiting for an earlier task in their lane
+     */
+    public int getQueued() {
+        return queued.get();
+    }
+}
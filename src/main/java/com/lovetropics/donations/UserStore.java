@@ -0,0 +1,385 @@
+package com.lovetropics.donations;
+
+import java.util.Arrays;
+
+/**
+ * Verification state for every user the bot has seen, keyed by the raw user ID.
+ * <p>
+ * This is an open addressing hash table over parallel primitive arrays, so an entry costs a handful
+ * of array slots rather than a boxed key, a map node and a boxed value in each of several maps.
+ * Lookups do not allocate. All methods are synchronized, as each operation is only a few array
+ * accesses.
+ * <p>
+ * Emails are normalized and interned into an {@link EmailTable}, so users hold int IDs instead of
+ * strings and comparisons ignore case and surrounding whitespace. The table also records which user
+ * verified with each email, so duplicate claims can be found without a scan.
+ */
+public class UserStore {
+    
+    public enum State {
+        NONE,
+        REJECTED,
+        PENDING,
+        VERIFIED,
+        ACCEPTED,
+        WHITELISTED,
+        ;
+        
+        private static final State[] VALUES = values();
+    }
+    
+    public interface Visitor {
+        
+        /**
+         * @param state The state of the user, or null if only other data is known about them
+         * @param verifiedEmail The ID of the verified email of the user, or {@link EmailTable#NONE}
+         * @param attemptedEmails The IDs of the emails this user has tried so far, never null. Must not be modified.
+         * @see UserStore#getEmail(int)
+         */
+        void visit(long id, State state, int verifiedEmail, int[] attemptedEmails, int resets);
+    }
+    
+    private static final long EMPTY = 0; // Discord IDs are never zero
+    private static final byte NO_STATE = -1;
+    private static final int[] NO_EMAILS = new int[0];
+    private static final int MAX_RESETS = Short.MAX_VALUE;
+    
+    private long[] keys;
+    private byte[] states;
+    private short[] resets;
+    private int[] verifiedEmails;
+    private int[][] attemptedEmails;
+    
+    private final EmailTable emails = new EmailTable();
+    
+    private int mask;
+    private int bits;
+    private int size;
+    private int users;
+    
+    public UserStore() {
+        this(16);
+    }
+    
+    public UserStore(int expectedSize) {
+        allocate(tableSize(expectedSize));
+    }
+    
+    private static int tableSize(int expectedSize) {
+        int capacity = Math.max(16, expectedSize * 2);
+        return Integer.highestOneBit(capacity - 1) << 1;
+    }
+    
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        states = new byte[capacity];
+        Arrays.fill(states, NO_STATE);
+        resets = new short[capacity];
+        verifiedEmails = new int[capacity];
+        attemptedEmails = new int[capacity][];
+        mask = capacity - 1;
+        bits = Integer.numberOfTrailingZeros(capacity);
+    }
+    
+    private int hash(long id) {
+        return UserHash.slot(id, bits);
+    }
+    
+    /**
+     * @return The slot holding this ID, or -1 if there is none
+     */
+    private int find(long id) {
+        int i = hash(id);
+        long key;
+        while ((key = keys[i]) != EMPTY) {
+            if (key == id) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+    
+    private int findOrInsert(long id) {
+        if (id == EMPTY) {
+            throw new IllegalArgumentException("Invalid user ID: " + id);
+        }
+        int i = hash(id);
+        long key;
+        while ((key = keys[i]) != EMPTY) {
+            if (key == id) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        if ((size + 1) * 2 > keys.length) {
+            rehash(keys.length * 2);
+            return findOrInsert(id);
+        }
+        keys[i] = id;
+        size++;
+        return i;
+    }
+    
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        byte[] oldStates = states;
+        short[] oldResets = resets;
+        int[] oldVerified = verifiedEmails;
+        int[][] oldAttempted = attemptedEmails;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            long id = oldKeys[i];
+            if (id != EMPTY) {
+                int j = hash(id);
+                while (keys[j] != EMPTY) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = id;
+                states[j] = oldStates[i];
+                resets[j] = oldResets[i];
+                verifiedEmails[j] = oldVerified[i];
+                attemptedEmails[j] = oldAttempted[i];
+            }
+        }
+    }
+    
+    /**
+     * @return True if this user has a state, even if that state is {@link State#NONE}
+     */
+    public synchronized boolean contains(long id) {
+        int i = find(id);
+        return i >= 0 && states[i] != NO_STATE;
+    }
+    
+    public synchronized State getState(long id) {
+        int i = find(id);
+        return i < 0 || states[i] == NO_STATE ? State.NONE : State.VALUES[states[i]];
+    }
+    
+    public synchronized void setState(long id, State state) {
+        int i = findOrInsert(id);
+        if (states[i] == NO_STATE) {
+            users++;
+        }
+        states[i] = (byte) state.ordinal();
+    }
+    
+    /**
+     * @return The normalized verified email of this user, or null
+     */
+    public synchronized String getVerifiedEmail(long id) {
+        int i = find(id);
+        return i < 0 ? null : emails.get(verifiedEmails[i]);
+    }
+    
+    /**
+     * Sets the verified email of this user. The user becomes the owner of the email unless another
+     * user already owns it, and stops owning their previous one.
+     */
+    public synchronized void setVerifiedEmail(long id, String email) {
+        int i = findOrInsert(id);
+        int prev = verifiedEmails[i];
+        if (prev != EmailTable.NONE && emails.getOwner(prev) == id) {
+            emails.setOwner(prev, 0);
+        }
+        int next = email == null ? EmailTable.NONE : emails.intern(email);
+        if (next != EmailTable.NONE) {
+            if (emails.getOwner(next) == 0) {
+                emails.setOwner(next, id);
+            }
+            emails.setLastUser(next, id);
+        }
+        verifiedEmails[i] = next;
+    }
+
+    /**
+     * Sets the verified email of this user, but only if no other user owns it already.
+     *
+     * @return Whether this user now owns the email
+     */
+    public synchronized boolean claimEmail(long id, String email) {
+        long owner = emails.getOwner(emails.find(email));
+        if (owner != 0 && owner != id) {
+            return false;
+        }
+        setVerifiedEmail(id, email);
+        return true;
+    }
+
+    public synchronized boolean hasAttemptedEmail(long id, String email) {
+        int i = find(id);
+        int e = emails.find(email);
+        if (i < 0 || e == EmailTable.NONE || attemptedEmails[i] == null) {
+            return false;
+        }
+        for (int attempted : attemptedEmails[i]) {
+            if (attempted == e) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * @return The normalized emails this user has tried so far, never null
+     */
+    public synchronized String[] getAttemptedEmails(long id) {
+        int i = find(id);
+        if (i < 0 || attemptedEmails[i] == null) {
+            return new String[0];
+        }
+        int[] attempted = attemptedEmails[i];
+        String[] ret = new String[attempted.length];
+        for (int j = 0; j < attempted.length; j++) {
+            ret[j] = emails.get(attempted[j]);
+        }
+        return ret;
+    }
+    
+    public synchronized void addAttemptedEmail(long id, String email) {
+        int i = findOrInsert(id);
+        int e = emails.intern(email);
+        emails.setLastUser(e, id);
+        int[] prev = attemptedEmails[i];
+        if (prev == null) {
+            attemptedEmails[i] = new int[] { e };
+        } else {
+            for (int attempted : prev) {
+                if (attempted == e) {
+                    return;
+                }
+            }
+            int[] next = Arrays.copyOf(prev, prev.length + 1);
+            next[prev.length] = e;
+            attemptedEmails[i] = next;
+        }
+    }
+    
+    /**
+     * @return The user who verified with this email, or 0 if nobody has
+     */
+    public synchronized long getEmailOwner(String email) {
+        return emails.getOwner(emails.find(email));
+    }
+    
+    /**
+     * @return The owner of this email if there is one, otherwise the user who most recently tried it,
+     *         or 0 if nobody has
+     */
+    public synchronized long findUserByEmail(String email) {
+        int e = emails.find(email);
+        long owner = emails.getOwner(e);
+        return owner != 0 ? owner : emails.getLastUser(e);
+    }
+    
+    /**
+     * @return The normalized email with this ID, as passed to a {@link Visitor}
+     */
+    public synchronized String getEmail(int email) {
+        return emails.get(email);
+    }
+    
+    /**
+     * @return The amount of distinct emails seen, which are numbered from 1 up to this
+     */
+    public synchronized int emailCount() {
+        return emails.size();
+    }
+    
+    public synchronized int getResets(long id) {
+        int i = find(id);
+        return i < 0 ? 0 : resets[i];
+    }
+    
+    public synchronized void setResets(long id, int value) {
+        resets[findOrInsert(id)] = (short) Math.min(MAX_RESETS, Math.max(0, value));
+    }
+    
+    /**
+     * Adds to the reset counter of this user, never going above {@code max}.
+     *
+     * @return The new value of the counter
+     */
+    public synchronized int addResets(long id, int amount, int max) {
+        int i = findOrInsert(id);
+        int ret = Math.min(Math.min(max, MAX_RESETS), resets[i] + amount);
+        resets[i] = (short) ret;
+        return ret;
+    }
+    
+    /**
+     * @return The amount of users with a state
+     */
+    public synchronized int size() {
+        return users;
+    }
+    
+    /**
+     * Visits every known user, in no particular order. The store is locked while this runs, so the
+     * visitor must not modify it, and other threads wait until it is done.
+     */
+    public synchronized void forEach(Visitor visitor) {
+        visit(keys, states, verifiedEmails, attemptedEmails, resets, visitor);
+    }
+    
+    private static void visit(long[] keys, byte[] states, int[] verifiedEmails, int[][] attemptedEmails, short[] resets, Visitor visitor) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                int[] attempted = attemptedEmails[i];
+                visitor.visit(keys[i], states[i] == NO_STATE ? null : State.VALUES[states[i]], verifiedEmails[i], attempted == null ? NO_EMAILS : attempted, resets[i]);
+            }
+        }
+    }
+    
+    /**
+     * Copies the arrays of the store, so it can be read at length without holding the lock. The
+     * attempted email arrays are never modified once set, so only the outer array is copied.
+     */
+    public synchronized Snapshot snapshot() {
+        return new Snapshot(keys.clone(), states.clone(), verifiedEmails.clone(), attemptedEmails.clone(), resets.clone(), emails.copyEmails());
+    }
+    
+    /**
+     * The users and emails of a store at one point in time. Unaffected by later changes to the store.
+     */
+    public static class Snapshot {
+        
+        private final long[] keys;
+        private final byte[] states;
+        private final int[] verifiedEmails;
+        private final int[][] attemptedEmails;
+        private final short[] resets;
+        private final String[] emails;
+        
+        private Snapshot(long[] keys, byte[] states, int[] verifiedEmails, int[][] attemptedEmails, short[] resets, String[] emails) {
+            this.keys = keys;
+            this.states = states;
+            this.verifiedEmails = verifiedEmails;
+            this.attemptedEmails = attemptedEmails;
+            this.resets = resets;
+            this.emails = emails;
+        }
+        
+        /**
+         * Visits every user in the snapshot, in no particular order.
+         */
+        public void forEach(Visitor visitor) {
+            visit(keys, states, verifiedEmails, attemptedEmails, resets, visitor);
+        }
+        
+        /**
+         * @see UserStore#getEmail(int)
+         */
+        public String getEmail(int email) {
+            return email == EmailTable.NONE ? null : emails[email - 1];
+        }
+        
+        /**
+         * @see UserStore#emailCount()
+         */
+        public int emailCount() {
+            return emails.length;
+        }
+    }
+}
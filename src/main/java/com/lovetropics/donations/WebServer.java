@@ -0,0 +1,74 @@
+package com.lovetropics.donations;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Small embedded HTTP server for the local endpoints of the bot, such as /metrics.
+ */
+@Slf4j
+public class WebServer {
+    
+    private final HttpServer server;
+    private final ExecutorService executor;
+    
+    public WebServer(String host, int port) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        this.executor = Executors.newFixedThreadPool(2, new ThreadFactoryBuilder().setNameFormat("Web Server %d").setDaemon(true).build());
+        this.server.setExecutor(executor);
+    }
+    
+    public WebServer route(String path, HttpHandler handler) {
+        server.createContext(path, exchange -> {
+            try {
+                handler.handle(exchange);
+            } catch (Exception e) {
+                log.error("Error handling request to {}", exchange.getRequestURI(), e);
+                respond(exchange, 500, "text/plain", "Internal error");
+            } finally {
+                exchange.close();
+            }
+        });
+        return this;
+    }
+    
+    public void start() {
+        server.start();
+        log.info("Web server listening on {}", server.getAddress());
+    }
+    
+    public void stop() {
+        server.stop(0);
+        executor.shutdown();
+    }
+    
+    public static void respond(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+    
+    /**
+     * Serves {@link Metrics} in the Prometheus text format.
+     */
+    public static void metrics(HttpExchange exchange) throws IOException {
+        StringWriter out = new StringWriter();
+        Metrics.write(out);
+        respond(exchange, 200, "text/plain; version=0.0.4", out.toString());
+    }
+}
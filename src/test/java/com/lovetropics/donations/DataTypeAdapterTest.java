@@ -0,0 +1,109 @@
+package com.lovetropics.donations;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.google.gson.JsonParseException;
+import com.lovetropics.donations.UserStore.State;
+
+import discord4j.core.object.util.Snowflake;
+
+public class DataTypeAdapterTest {
+    
+    private static final long USER = 138395003035467776L;
+    private static final long OTHER = 138395003035467777L;
+    
+    private final DataTypeAdapter adapter = new DataTypeAdapter();
+    
+    private Data read(String json) throws IOException {
+        return adapter.fromJson(json.replace('\'', '"'));
+    }
+    
+    @Test
+    public void readsObjectKeyedMapsWithInlineEmails() throws IOException {
+        // The layout written when Data held one map per field
+        Data data = read("{'message':'1234',"
+                + "'userStates':{'" + USER + "':'VERIFIED','" + OTHER + "':'PENDING'},"
+                + "'verifiedEmails':{'" + USER + "':' Donor@Example.com'},"
+                + "'attemptedEmails':{'" + USER + "':['donor@example.com'],'" + OTHER + "':['a@example.com','B@example.com']},"
+                + "'resets':{'" + OTHER + "':2}}");
+        UserStore users = data.getUsers();
+        
+        assertEquals(Snowflake.of(1234), data.getMessage());
+        assertEquals(State.VERIFIED, users.getState(USER));
+        assertEquals(State.PENDING, users.getState(OTHER));
+        assertEquals("donor@example.com", users.getVerifiedEmail(USER));
+        assertEquals(USER, users.getEmailOwner("donor@example.com"));
+        assertArrayEquals(new String[] { "a@example.com", "b@example.com" }, users.getAttemptedEmails(OTHER));
+        assertEquals(2, users.getResets(OTHER));
+        assertEquals(0, users.getResets(USER));
+        // The same email inline twice is only interned once
+        assertEquals(3, users.emailCount());
+    }
+    
+    @Test
+    public void readsPairArrayMaps() throws IOException {
+        Data data = read("{'userStates':[[" + USER + ",'ACCEPTED']],"
+                + "'verifiedEmails':[[" + USER + ",'donor@example.com']],"
+                + "'attemptedEmails':[[" + USER + ",['old@example.com','donor@example.com']]],"
+                + "'resets':[[" + USER + ",3]]}");
+        UserStore users = data.getUsers();
+        
+        assertNull(data.getMessage());
+        assertEquals(State.ACCEPTED, users.getState(USER));
+        assertEquals("donor@example.com", users.getVerifiedEmail(USER));
+        assertArrayEquals(new String[] { "old@example.com", "donor@example.com" }, users.getAttemptedEmails(USER));
+        assertEquals(3, users.getResets(USER));
+    }
+    
+    @Test
+    public void readsEmailIds() throws IOException {
+        Data data = read("{'emails':['a@example.com','b@example.com'],"
+                + "'userStates':{'" + USER + "':'VERIFIED'},"
+                + "'verifiedEmails':{'" + USER + "':2},"
+                + "'attemptedEmails':{'" + USER + "':[1,2]}}");
+        UserStore users = data.getUsers();
+        
+        assertEquals("b@example.com", users.getVerifiedEmail(USER));
+        assertArrayEquals(new String[] { "a@example.com", "b@example.com" }, users.getAttemptedEmails(USER));
+    }
+    
+    @Test(expected = JsonParseException.class)
+    public void rejectsUnknownEmailId() throws IOException {
+        read("{'emails':['a@example.com'],'verifiedEmails':{'" + USER + "':2}}");
+    }
+    
+    @Test
+    public void roundTripWritesEachEmailOnce() throws IOException {
+        Data data = new Data();
+        data.setMessage(Snowflake.of(1234));
+        UserStore users = data.getUsers();
+        users.setState(USER, State.ACCEPTED);
+        users.addAttemptedEmail(USER, "donor@example.com");
+        users.setVerifiedEmail(USER, "donor@example.com");
+        users.setState(OTHER, State.PENDING);
+        users.addAttemptedEmail(OTHER, "typo@example.com");
+        users.addAttemptedEmail(OTHER, "donor@example.com");
+        users.setResets(OTHER, 2);
+        
+        String json = adapter.toJson(data);
+        assertTrue(json, json.contains("\"emails\":[\"donor@example.com\",\"typo@example.com\"]"));
+        
+        Data read = adapter.fromJson(json);
+        UserStore readUsers = read.getUsers();
+        assertEquals(Snowflake.of(1234), read.getMessage());
+        assertEquals(State.ACCEPTED, readUsers.getState(USER));
+        assertEquals("donor@example.com", readUsers.getVerifiedEmail(USER));
+        assertEquals(USER, readUsers.getEmailOwner("donor@example.com"));
+        assertEquals(State.PENDING, readUsers.getState(OTHER));
+        assertArrayEquals(new String[] { "typo@example.com", "donor@example.com" }, readUsers.getAttemptedEmails(OTHER));
+        assertEquals(2, readUsers.getResets(OTHER));
+        assertEquals(json, adapter.toJson(read));
+    }
+}
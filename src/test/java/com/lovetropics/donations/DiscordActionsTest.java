@@ -0,0 +1,305 @@
+package com.lovetropics.donations;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import discord4j.core.object.entity.Message;
+import discord4j.core.object.entity.MessageChannel;
+import discord4j.core.object.util.Snowflake;
+import discord4j.rest.http.client.ClientException;
+import discord4j.rest.http.client.ClientRequest;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+public class DiscordActionsTest {
+    
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+    
+    /** Scripted status which answers 204 only after the client has timed out */
+    private static final int HANG = -1;
+    
+    private static final Snowflake GUILD = Snowflake.of(1);
+    private static final Snowflake MEMBER = Snowflake.of(2);
+    private static final Snowflake ROLE = Snowflake.of(3);
+    private static final Snowflake OTHER_ROLE = Snowflake.of(4);
+    
+    /**
+     * Sends requests the way Discord4J does, turning error statuses into {@link ClientException}.
+     */
+    private class FakeRest implements DiscordActions.Rest {
+        
+        @Override
+        public Mono<Void> addRole(Snowflake guild, Snowflake member, Snowflake role) {
+            return request(HttpMethod.PUT, "/guilds/" + guild.asString() + "/members/" + member.asString() + "/roles/" + role.asString());
+        }
+        
+        @Override
+        public Mono<Void> removeRole(Snowflake guild, Snowflake member, Snowflake role) {
+            return request(HttpMethod.DELETE, "/guilds/" + guild.asString() + "/members/" + member.asString() + "/roles/" + role.asString());
+        }
+        
+        @Override
+        public Mono<Message> createMessage(MessageChannel channel, String content) {
+            return Mono.error(new UnsupportedOperationException());
+        }
+        
+        @Override
+        public Mono<Message> createDirectMessage(Snowflake user, String content) {
+            return request(HttpMethod.POST, "/users/" + user.asString() + "/messages").then(Mono.empty());
+        }
+        
+        private Mono<Void> request(HttpMethod method, String path) {
+            String url = "http://localhost:" + server.getAddress().getPort() + path;
+            return HttpClient.create(ConnectionProvider.newConnection())
+                    .request(method)
+                    .uri(url)
+                    .responseSingle((resp, body) -> body.asString().defaultIfEmpty("").flatMap(s -> resp.status().code() < 400
+                            ? Mono.<Void>empty()
+                            : Mono.<Void>error(new ClientException(new ClientRequest(method, url, new DefaultHttpHeaders()), resp, null))));
+        }
+    }
+    
+    private HttpServer server;
+    private ExecutorService executor;
+    private final Map<String, Queue<Integer>> scripts = new ConcurrentHashMap<>();
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private volatile long responseDelay;
+    
+    @Before
+    public void setup() throws IOException {
+        executor = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+    
+    @After
+    public void tearDown() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+    
+    private void script(String path, Integer... statuses) {
+        scripts.put(path, new ArrayDeque<>(Arrays.asList(statuses)));
+    }
+    
+    private void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        requests.add(exchange.getRequestMethod() + " " + path);
+        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        try {
+            Queue<Integer> script = scripts.getOrDefault(path, new ArrayDeque<>());
+            Integer next;
+            synchronized (script) {
+                next = script.poll();
+            }
+            int status = next == null ? 204 : next;
+            Thread.sleep(status == HANG ? 1000 : responseDelay);
+            if (status == 429) {
+                exchange.getResponseHeaders().add("Retry-After", "0.3");
+            }
+            exchange.sendResponseHeaders(status == HANG ? 204 : status, -1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            inFlight.decrementAndGet();
+            exchange.close();
+        }
+    }
+    
+    private DiscordActions create(int concurrency, Duration requestTimeout) {
+        return new DiscordActions(new FakeRest(), concurrency, 3, Duration.ofMillis(50), Duration.ofMillis(200), requestTimeout);
+    }
+    
+    private static String grant(Snowflake role) {
+        return "PUT /guilds/1/members/2/roles/" + role.asString();
+    }
+    
+    @Test
+    public void identicalGrantsAreMerged() {
+        responseDelay = 200;
+        DiscordActions actions = create(4, TIMEOUT);
+        Mono.when(actions.addRole(GUILD, MEMBER, ROLE), actions.addRole(GUILD, MEMBER, ROLE), actions.addRole(GUILD, MEMBER, OTHER_ROLE))
+                .block(TIMEOUT);
+        
+        assertEquals(1, Collections.frequency(requests, grant(ROLE)));
+        assertEquals(1, Collections.frequency(requests, grant(OTHER_ROLE)));
+        
+        // Once finished, the same grant is sent again
+        actions.addRole(GUILD, MEMBER, ROLE).block(TIMEOUT);
+        assertEquals(2, Collections.frequency(requests, grant(ROLE)));
+    }
+    
+    @Test
+    public void retriesRateLimitsAndServerErrors() {
+        script("/guilds/1/members/2/roles/3", 429, 500, 204);
+        DiscordActions actions = create(4, TIMEOUT);
+        long start = System.nanoTime();
+        actions.addRole(GUILD, MEMBER, ROLE).block(TIMEOUT);
+        
+        assertEquals(3, requests.size());
+        assertEquals(2, actions.getRetries());
+        assertEquals(1, actions.getRateLimited());
+        assertEquals(0, actions.getFailed());
+        assertTrue("Retry-After was not waited out", System.nanoTime() - start >= Duration.ofMillis(300).toNanos());
+    }
+    
+    @Test
+    public void givesUpAfterMaxRetries() {
+        script("/guilds/1/members/2/roles/3", 500, 500, 500, 500, 500);
+        DiscordActions actions = create(4, TIMEOUT);
+        try {
+            actions.removeRole(GUILD, MEMBER, ROLE).block(TIMEOUT);
+            fail("Expected the request to fail");
+        } catch (ClientException e) {
+            assertEquals(500, e.getStatus().code());
+        }
+        assertEquals(4, requests.size());
+        assertEquals(1, actions.getFailed());
+    }
+    
+    @Test
+    public void clientErrorsAreNotRetried() {
+        script("/guilds/1/members/2/roles/3", 403);
+        DiscordActions actions = create(4, TIMEOUT);
+        try {
+            actions.addRole(GUILD, MEMBER, ROLE).block(TIMEOUT);
+            fail("Expected the request to fail");
+        } catch (ClientException e) {
+            assertEquals(403, e.getStatus().code());
+        }
+        assertEquals(1, requests.size());
+    }
+    
+    @Test
+    public void timedOutGrantIsRetried() {
+        script("/guilds/1/members/2/roles/3", HANG, 204);
+        DiscordActions actions = create(4, Duration.ofMillis(200));
+        actions.addRole(GUILD, MEMBER, ROLE).block(TIMEOUT);
+        
+        assertEquals(1, actions.getTimeouts());
+        assertEquals(2, Collections.frequency(requests, grant(ROLE)));
+    }
+    
+    @Test
+    public void timedOutMessageIsNotSentTwice() {
+        script("/users/2/messages", HANG, 204);
+        DiscordActions actions = create(4, Duration.ofMillis(200));
+        try {
+            actions.sendDirectMessage(MEMBER, "Hello").block(TIMEOUT);
+            fail("Expected the request to time out");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        assertEquals(1, requests.size());
+    }
+    
+    @Test
+    public void bucketRunsRequestsConcurrently() {
+        responseDelay = 200;
+        DiscordActions actions = create(4, TIMEOUT);
+        Mono.when(actions.addRole(GUILD, Snowflake.of(10), ROLE), actions.addRole(GUILD, Snowflake.of(11), ROLE),
+                actions.addRole(GUILD, Snowflake.of(12), ROLE), actions.addRole(GUILD, Snowflake.of(13), ROLE),
+                actions.addRole(GUILD, Snowflake.of(14), ROLE), actions.addRole(GUILD, Snowflake.of(15), ROLE))
+                .block(TIMEOUT);
+        
+        assertEquals(6, requests.size());
+        assertEquals(4, maxInFlight.get());
+    }
+    
+    @Test
+    public void backoffDoesNotHoldUpTheBucket() {
+        script("/guilds/1/members/2/roles/3", 500, 204);
+        DiscordActions actions = new DiscordActions(new FakeRest(), 1, 3, Duration.ofMillis(1000), Duration.ofMillis(1000), TIMEOUT);
+        List<Snowflake> finished = new CopyOnWriteArrayList<>();
+        Mono<Void> retried = actions.addRole(GUILD, MEMBER, ROLE).doOnSuccess($ -> finished.add(ROLE));
+        Mono<Void> queued = Mono.delay(Duration.ofMillis(100))
+                .then(actions.addRole(GUILD, MEMBER, OTHER_ROLE))
+                .doOnSuccess($ -> finished.add(OTHER_ROLE));
+        Mono.when(retried, queued).block(TIMEOUT);
+        
+        assertEquals(Arrays.asList(OTHER_ROLE, ROLE), finished);
+    }
+    
+    @Test
+    public void rateLimitHalvesConcurrencyUntilSuccess() {
+        DiscordActions.RateLimitBucket bucket = new DiscordActions.RateLimitBucket(8);
+        bucket.rateLimited(Duration.ZERO);
+        assertEquals(4, bucket.getConcurrency());
+        bucket.rateLimited(Duration.ZERO);
+        bucket.rateLimited(Duration.ZERO);
+        bucket.rateLimited(Duration.ZERO);
+        assertEquals(1, bucket.getConcurrency());
+        for (int i = 0; i < 10; i++) {
+            bucket.succeeded();
+        }
+        assertEquals(8, bucket.getConcurrency());
+    }
+    
+    @Test
+    public void rateLimitedBucketWaitsForReset() {
+        DiscordActions.RateLimitBucket bucket = new DiscordActions.RateLimitBucket(2);
+        bucket.rateLimited(Duration.ofMillis(300));
+        long start = System.nanoTime();
+        bucket.acquire().block(TIMEOUT).release();
+        assertTrue(System.nanoTime() - start >= Duration.ofMillis(300).toNanos());
+    }
+    
+    @Test
+    public void cancelledWaiterDoesNotTakeAPlace() {
+        DiscordActions.RateLimitBucket bucket = new DiscordActions.RateLimitBucket(1);
+        DiscordActions.RateLimitBucket.Permit held = bucket.acquire().block(TIMEOUT);
+        bucket.acquire().subscribe().dispose();
+        held.release();
+        held.release();
+        bucket.acquire().block(TIMEOUT);
+    }
+    
+    @Test
+    public void backoffStaysWithinJitterBounds() {
+        DiscordActions actions = new DiscordActions(new FakeRest(), 1, 5, Duration.ofMillis(100), Duration.ofMillis(1000), TIMEOUT);
+        for (int attempt = 0; attempt < 8; attempt++) {
+            long max = Math.min(1000, 100L << attempt);
+            long lowest = Long.MAX_VALUE, highest = 0;
+            for (int i = 0; i < 1000; i++) {
+                long backoff = actions.backoff(attempt).toMillis();
+                lowest = Math.min(lowest, backoff);
+                highest = Math.max(highest, backoff);
+            }
+            assertTrue("Attempt " + attempt + " waited " + lowest + "ms", lowest >= max / 2);
+            assertTrue("Attempt " + attempt + " waited " + highest + "ms", highest <= max);
+            // With this many samples, the jitter should cover most of its range
+            assertTrue(highest - lowest >= max / 4);
+        }
+    }
+}
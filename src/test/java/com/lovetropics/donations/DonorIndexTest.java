@@ -0,0 +1,109 @@
+package com.lovetropics.donations;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import reactor.core.publisher.Mono;
+
+public class DonorIndexTest {
+    
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+    
+    private StubDonationApi stub;
+    private DonationApi api;
+    
+    @Before
+    public void setup() throws Exception {
+        stub = new StubDonationApi(0, 0, 0);
+        api = new DonationApi(stub.getUrl(), "test", 4, Duration.ofSeconds(5), Duration.ofSeconds(5), false,
+                new CircuitBreaker("test", 5, Duration.ofSeconds(30)));
+    }
+    
+    @After
+    public void tearDown() {
+        stub.stop();
+    }
+    
+    private void addDonations(int from, int to) {
+        for (int id = from; id <= to; id++) {
+            // Mixed case, so totals only add up if emails are normalized
+            String email = (id % 2 == 0 ? "Donor" : "donor") + (id % 5) + "@Example.com";
+            stub.addDonation(new Donation(id, 10, "Donor " + id, email));
+        }
+    }
+    
+    @Test
+    public void pagesThroughEveryDonation() {
+        addDonations(1, 25);
+        DonorIndex index = new DonorIndex(api, 10);
+        
+        assertEquals(25, (int) index.sync().block(TIMEOUT));
+        assertEquals(Arrays.asList(0, 10, 20), stub.getDonationQueries());
+        assertEquals(5, index.size());
+        assertEquals(50.0, index.getTotal("DONOR1@example.com").block(TIMEOUT), 0);
+    }
+    
+    @Test
+    public void laterSyncsOnlyAskForNewDonations() {
+        addDonations(1, 25);
+        DonorIndex index = new DonorIndex(api, 10);
+        index.sync().block(TIMEOUT);
+        
+        addDonations(26, 28);
+        assertEquals(3, (int) index.sync().block(TIMEOUT));
+        assertEquals(0, (int) index.sync().block(TIMEOUT));
+        assertEquals(Arrays.asList(0, 10, 20, 25, 28), stub.getDonationQueries());
+        assertEquals(60.0, index.getTotal("donor1@example.com").block(TIMEOUT), 0);
+    }
+    
+    @Test
+    public void pushedDonationsAreCountedOnce() {
+        addDonations(1, 5);
+        DonorIndex index = new DonorIndex(api, 10);
+        index.sync().block(TIMEOUT);
+        
+        // Pushed before the sync reaches them, and again after it has
+        Donation ahead = new Donation(7, 10, "Donor 7", "late@example.com");
+        assertTrue(index.add(ahead));
+        assertFalse(index.add(ahead));
+        assertFalse(index.add(new Donation(3, 10, "Donor 3", "donor3@example.com")));
+        
+        stub.addDonation(new Donation(6, 10, "Donor 6", "late@example.com"));
+        stub.addDonation(ahead);
+        assertEquals(1, (int) index.sync().block(TIMEOUT));
+        assertFalse(index.add(ahead));
+        assertEquals(20.0, index.getTotal("late@example.com").block(TIMEOUT), 0);
+        assertEquals(10.0, index.getTotal("donor3@example.com").block(TIMEOUT), 0);
+    }
+    
+    @Test
+    public void qualifyingIndexedTotalSkipsRemote() {
+        stub.addDonation(new Donation(1, 30, "Donor", "user3@example.com"));
+        DonorIndex index = new DonorIndex(api, 10);
+        index.sync().block(TIMEOUT);
+        
+        long requests = stub.getRequests();
+        assertEquals(30.0, index.getTotal("user3@example.com", 25, () -> api.getTotal("user3@example.com")).block(TIMEOUT), 0);
+        assertEquals(requests, stub.getRequests());
+    }
+    
+    @Test
+    public void totalBelowMinimumFallsBackToRemote() {
+        // The stub API has user3 at 40 in total, the index has only seen part of it
+        stub.addDonation(new Donation(1, 5, "Donor", "user3@example.com"));
+        DonorIndex index = new DonorIndex(api, 10);
+        index.sync().block(TIMEOUT);
+        
+        assertEquals(StubDonationApi.totalFor(3), index.getTotal("user3@example.com", 25, () -> api.getTotal("user3@example.com")).block(TIMEOUT), 0);
+        assertEquals(StubDonationApi.totalFor(4), index.getTotal("user4@example.com", 25, () -> api.getTotal("user4@example.com")).block(TIMEOUT), 0);
+        assertEquals(0.0, index.getTotal("user5@example.com", 25, () -> Mono.just(0.0)).block(TIMEOUT), 0);
+    }
+}
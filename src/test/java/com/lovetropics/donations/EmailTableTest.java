@@ -0,0 +1,60 @@
+package com.lovetropics.donations;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class EmailTableTest {
+    
+    @Test
+    public void internsNormalizedEmails() {
+        EmailTable emails = new EmailTable();
+        int id = emails.intern(" Donor@Example.com ");
+        assertEquals(1, id);
+        assertEquals(id, emails.intern("donor@example.com"));
+        assertEquals(id, emails.find("DONOR@EXAMPLE.COM"));
+        assertEquals("donor@example.com", emails.get(id));
+        assertEquals(1, emails.size());
+    }
+    
+    @Test
+    public void unknownEmailsAreNone() {
+        EmailTable emails = new EmailTable();
+        emails.intern("donor@example.com");
+        assertEquals(EmailTable.NONE, emails.find("other@example.com"));
+        assertNull(emails.get(EmailTable.NONE));
+        assertEquals(0, emails.getOwner(EmailTable.NONE));
+        assertEquals(0, emails.getLastUser(EmailTable.NONE));
+    }
+    
+    @Test
+    public void keepsIdsAndUsersWhileGrowing() {
+        EmailTable emails = new EmailTable();
+        for (int i = 0; i < 10000; i++) {
+            int id = emails.intern("donor" + i + "@example.com");
+            assertEquals(i + 1, id);
+            emails.setOwner(id, i);
+            emails.setLastUser(id, -i);
+        }
+        assertEquals(10000, emails.size());
+        for (int i = 0; i < 10000; i++) {
+            int id = emails.find("Donor" + i + "@example.com");
+            assertEquals(i + 1, id);
+            assertEquals(i, emails.getOwner(id));
+            assertEquals(-i, emails.getLastUser(id));
+        }
+    }
+    
+    @Test
+    public void copiesEmailsInIdOrder() {
+        EmailTable emails = new EmailTable();
+        emails.intern("b@example.com");
+        emails.intern("a@example.com");
+        String[] copy = emails.copyEmails();
+        emails.intern("c@example.com");
+        assertEquals(2, copy.length);
+        assertEquals("b@example.com", copy[0]);
+        assertEquals("a@example.com", copy[1]);
+    }
+}
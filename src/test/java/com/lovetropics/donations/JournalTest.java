@@ -0,0 +1,114 @@
+package com.lovetropics.donations;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.gson.Gson;
+
+public class JournalTest {
+    
+    static class Record {
+        int value;
+        
+        Record(int value) {
+            this.value = value;
+        }
+    }
+    
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+    
+    private File file;
+    
+    @Before
+    public void setup() {
+        file = new File(temp.getRoot(), "test.journal");
+    }
+    
+    private Journal<Record> open() {
+        return new Journal<>(file, new Gson(), Record.class);
+    }
+    
+    private static List<Integer> replay(Journal<Record> journal) {
+        List<Integer> ret = new ArrayList<>();
+        journal.replay(r -> ret.add(r.value));
+        return ret;
+    }
+    
+    @Test
+    public void replaysInOrder() throws Exception {
+        Journal<Record> journal = open();
+        for (int i = 0; i < 5; i++) {
+            journal.append(new Record(i));
+        }
+        journal.close();
+        
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), replay(open()));
+    }
+    
+    @Test
+    public void skipsTruncatedLastRecord() throws Exception {
+        Journal<Record> journal = open();
+        journal.append(new Record(1));
+        journal.append(new Record(2));
+        journal.close();
+        // A crash halfway through writing the third record
+        Files.write(file.toPath(), "{\"value\":".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        
+        Journal<Record> reopened = open();
+        assertEquals(Arrays.asList(1, 2), replay(reopened));
+        
+        // Appending after the cut off record must not merge into it
+        reopened.append(new Record(3));
+        reopened.close();
+        assertEquals(Arrays.asList(1, 2, 3), replay(open()));
+    }
+    
+    @Test
+    public void compactionKeepsRecordsAppendedDuringSnapshot() throws Exception {
+        Journal<Record> journal = open();
+        journal.append(new Record(1));
+        journal.compact(() -> journal.append(new Record(2)));
+        journal.close();
+        
+        assertEquals(Arrays.asList(2), replay(open()));
+    }
+    
+    @Test
+    public void interruptedCompactionReplaysRotatedFirst() throws Exception {
+        Journal<Record> journal = open();
+        journal.append(new Record(1));
+        try {
+            journal.compact(() -> {
+                journal.append(new Record(2));
+                throw new IllegalStateException("Crash while writing the snapshot");
+            });
+        } catch (IllegalStateException expected) {
+        }
+        journal.close();
+        assertEquals(Arrays.asList(1, 2), replay(open()));
+        
+        // The next compaction folds both files in, and leaves nothing behind once the snapshot is written
+        Journal<Record> reopened = open();
+        reopened.append(new Record(3));
+        List<Integer> seen = new ArrayList<>();
+        reopened.compact(() -> reopened.replay(r -> seen.add(r.value)));
+        reopened.close();
+        assertEquals(Arrays.asList(1, 2, 3), seen);
+        assertEquals(Arrays.asList(), replay(open()));
+        assertFalse(new File(temp.getRoot(), "test.journal.old").exists());
+    }
+}
@@ -0,0 +1,210 @@
+package com.lovetropics.donations;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.lovetropics.donations.UserStore.State;
+
+import discord4j.core.object.util.Snowflake;
+
+public class StateStoreTest {
+    
+    private static final long FIRST_USER = 200000000000000000L;
+    private static final int USERS = 200;
+    
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+    
+    private File folder;
+    
+    @Before
+    public void setup() {
+        folder = temp.getRoot();
+    }
+    
+    private static long user(int i) {
+        return FIRST_USER + i * 4194304L;
+    }
+    
+    private StateStore open(int partitions) {
+        return new StateStore(folder, partitions, Duration.ofMinutes(1));
+    }
+    
+    private static void fill(StateStore store) {
+        for (int i = 0; i < USERS; i++) {
+            long user = user(i);
+            store.setState(user, i % 2 == 0 ? State.VERIFIED : State.PENDING);
+            store.addAttemptedEmail(user, "typo" + i + "@example.com");
+            store.addAttemptedEmail(user, "donor" + i + "@example.com");
+            if (i % 2 == 0) {
+                store.setVerifiedEmail(user, "donor" + i + "@example.com");
+            }
+            store.bumpResets(user, i % 3);
+        }
+    }
+    
+    private static void assertFilled(StateStore store) {
+        assertEquals(USERS, store.size());
+        for (int i = 0; i < USERS; i++) {
+            long user = user(i);
+            UserStore users = store.getUsers(user);
+            assertEquals(i % 2 == 0 ? State.VERIFIED : State.PENDING, users.getState(user));
+            assertEquals(2, users.getAttemptedEmails(user).length);
+            assertEquals(i % 3, users.getResets(user));
+            if (i % 2 == 0) {
+                assertEquals("donor" + i + "@example.com", users.getVerifiedEmail(user));
+                assertEquals(user, store.getEmailOwner("Donor" + i + "@example.com"));
+            } else {
+                assertEquals(0, store.getEmailOwner("donor" + i + "@example.com"));
+                assertEquals(user, store.getUserByEmail("donor" + i + "@example.com"));
+            }
+        }
+    }
+    
+    private File partitionFile(int partition, int count, String name) {
+        return new File(count == 1 ? folder : new File(folder, "data-" + partition + "-of-" + count), name);
+    }
+    
+    @Test
+    public void partitionsAreStableAndSpread() {
+        int[] counts = new int[4];
+        for (int i = 0; i < 4000; i++) {
+            int partition = StateStore.partition(user(i), 4);
+            assertEquals(partition, StateStore.partition(user(i), 4));
+            counts[partition]++;
+        }
+        for (int count : counts) {
+            assertTrue("Uneven partitions: " + count, count > 800 && count < 1200);
+        }
+    }
+    
+    @Test
+    public void usersLiveInTheirPartition() {
+        StateStore store = open(3);
+        fill(store);
+        int[] perPartition = new int[3];
+        for (int i = 0; i < USERS; i++) {
+            long user = user(i);
+            perPartition[StateStore.partition(user, 3)]++;
+            assertTrue(store.getUsers(user).contains(user));
+        }
+        // Each partition only holds its own users
+        for (int i = 0; i < USERS; i++) {
+            long user = user(i);
+            assertEquals(perPartition[StateStore.partition(user, 3)], store.getUsers(user).size());
+        }
+        int[] visited = new int[1];
+        store.forEach((id, state, verifiedEmail, attemptedEmails, resets) -> visited[0]++);
+        assertEquals(USERS, visited[0]);
+    }
+    
+    @Test
+    public void journalIsReplayedOnReopen() {
+        fill(open(2));
+        assertFilled(open(2));
+    }
+    
+    @Test
+    public void migratesBetweenPartitionCounts() throws Exception {
+        StateStore store = open(1);
+        fill(store);
+        // The message is not journaled, only written by compaction
+        store.setMessage(Snowflake.of(1234));
+        store.save().block();
+        store.flush();
+        
+        StateStore split = open(4);
+        assertEquals(4, split.getPartitionCount());
+        assertEquals(Snowflake.of(1234), split.getData().getMessage());
+        assertFilled(split);
+        for (int i = 0; i < USERS; i++) {
+            long user = user(i);
+            assertTrue(split.getUsers(user).contains(user));
+        }
+        assertEquals("4", new String(Files.readAllBytes(new File(folder, "partitions").toPath()), StandardCharsets.UTF_8));
+        // The old layout is kept aside rather than deleted
+        assertFalse(partitionFile(0, 1, "data.json").exists());
+        assertTrue(partitionFile(0, 1, "data.json.migrated").exists());
+        
+        // Changes after the migration go to the new layout, and come back when merging again
+        split.setState(user(1), State.ACCEPTED);
+        StateStore merged = open(1);
+        assertEquals(State.ACCEPTED, merged.getUsers(user(1)).getState(user(1)));
+        merged.setState(user(1), State.PENDING);
+        assertFilled(merged);
+        assertEquals(Snowflake.of(1234), merged.getData().getMessage());
+        assertFilled(open(1));
+    }
+    
+    @Test
+    public void migrationInterruptedBeforeSwitchingLayoutStartsOver() throws Exception {
+        fill(open(1));
+        // A migration to two partitions which crashed while writing them, after recording a stray change
+        File leftover = partitionFile(0, 2, "data.json");
+        leftover.getParentFile().mkdirs();
+        Files.write(leftover.toPath(), "{\"userStates\":{\"42\":\"ACCEPTED\"}}".getBytes(StandardCharsets.UTF_8));
+        
+        StateStore split = open(2);
+        assertFilled(split);
+        assertEquals(State.NONE, split.getUsers(42).getState(42));
+        assertFilled(open(2));
+    }
+    
+    @Test
+    public void migrationInterruptedAfterSwitchingLayoutKeepsNewLayout() throws Exception {
+        fill(open(1));
+        StateStore split = open(2);
+        // A crash after the layout was recorded, before the old files were moved aside
+        for (String name : new String[] { "data.json", "data.journal" }) {
+            File migrated = partitionFile(0, 1, name + ".migrated");
+            if (migrated.exists()) {
+                Files.copy(migrated.toPath(), partitionFile(0, 1, name).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        split.setState(user(0), State.ACCEPTED);
+        
+        StateStore reopened = open(2);
+        assertEquals(State.ACCEPTED, reopened.getUsers(user(0)).getState(user(0)));
+        
+        // The stale files of the old layout are replaced rather than merged when moving back to it
+        StateStore merged = open(1);
+        assertEquals(State.ACCEPTED, merged.getUsers(user(0)).getState(user(0)));
+        assertEquals(USERS, merged.size());
+    }
+    
+    @Test
+    public void onlyOneUserCanClaimAnEmailAcrossPartitions() throws Exception {
+        StateStore store = open(4);
+        long first = user(0);
+        int other = 1;
+        while (store.getUsers(user(other)) == store.getUsers(first)) {
+            other++;
+        }
+        long second = user(other);
+        
+        boolean[] won = new boolean[2];
+        Thread racer = new Thread(() -> won[1] = store.claimEmail(second, "Donor@example.com"));
+        racer.start();
+        won[0] = store.claimEmail(first, "donor@example.com");
+        racer.join();
+        
+        assertTrue(won[0] != won[1]);
+        long owner = won[0] ? first : second;
+        assertEquals(owner, store.getEmailOwner("donor@example.com"));
+        assertTrue(store.claimEmail(owner, "donor@example.com"));
+        assertFalse(store.claimEmail(owner == first ? second : first, "donor@example.com"));
+        assertEquals(owner, open(4).getEmailOwner("donor@example.com"));
+    }
+}
@@ -0,0 +1,51 @@
+package com.lovetropics.donations;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+import reactor.core.publisher.Mono;
+
+public class UserLanesTest {
+    
+    private static final long USER = 138395003035467776L;
+    
+    @Test
+    public void tasksOfOneUserRunInOrder() throws Exception {
+        UserLanes lanes = new UserLanes(4, Duration.ofSeconds(10));
+        List<Integer> ran = Collections.synchronizedList(new ArrayList<>());
+        CompletableFuture<Integer> slow = lanes.submit(USER, () -> Mono.delay(Duration.ofMillis(100)).thenReturn(1).doOnNext(ran::add)).toFuture();
+        CompletableFuture<Integer> fast = lanes.submit(USER, () -> Mono.just(2).doOnNext(ran::add)).toFuture();
+        
+        assertEquals(2, (int) fast.get(5, TimeUnit.SECONDS));
+        assertEquals(1, (int) slow.get(5, TimeUnit.SECONDS));
+        assertEquals(2, ran.size());
+        assertEquals(1, (int) ran.get(0));
+    }
+    
+    @Test
+    public void stalledTaskDoesNotHoldUpItsLane() throws Exception {
+        UserLanes lanes = new UserLanes(1, Duration.ofMillis(200));
+        CompletableFuture<Object> stalled = lanes.submit(USER, Mono::never).toFuture();
+        CompletableFuture<Integer> next = lanes.submit(USER + 1, () -> Mono.just(2)).toFuture();
+        
+        assertEquals(2, (int) next.get(5, TimeUnit.SECONDS));
+        try {
+            stalled.get(5, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+            return;
+        }
+        throw new AssertionError("Stalled task did not time out");
+    }
+}
@@ -0,0 +1,127 @@
+package com.lovetropics.donations;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.lovetropics.donations.UserStore.State;
+
+public class UserStoreTest {
+    
+    private static final long USER = 138395003035467776L;
+    
+    @Test
+    public void unknownUsersHaveDefaults() {
+        UserStore users = new UserStore();
+        assertFalse(users.contains(USER));
+        assertEquals(State.NONE, users.getState(USER));
+        assertNull(users.getVerifiedEmail(USER));
+        assertEquals(0, users.getAttemptedEmails(USER).length);
+        assertEquals(0, users.getResets(USER));
+        assertEquals(0, users.size());
+    }
+    
+    @Test
+    public void onlyUsersWithAStateAreCounted() {
+        UserStore users = new UserStore();
+        users.setResets(USER, 2);
+        assertFalse(users.contains(USER));
+        assertEquals(0, users.size());
+        
+        users.setState(USER, State.NONE);
+        assertTrue(users.contains(USER));
+        users.setState(USER, State.VERIFIED);
+        assertEquals(State.VERIFIED, users.getState(USER));
+        assertEquals(1, users.size());
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroId() {
+        new UserStore().setState(0, State.PENDING);
+    }
+    
+    @Test
+    public void keepsEntriesWhileGrowing() {
+        UserStore users = new UserStore(4);
+        Map<Long, State> expected = new HashMap<>();
+        for (int i = 1; i <= 10000; i++) {
+            long id = USER + i * 4096L;
+            State state = State.values()[i % State.values().length];
+            users.setState(id, state);
+            users.setResets(id, i % 3);
+            expected.put(id, state);
+        }
+        assertEquals(10000, users.size());
+        for (Map.Entry<Long, State> e : expected.entrySet()) {
+            assertEquals(e.getValue(), users.getState(e.getKey()));
+        }
+        int[] visited = new int[1];
+        users.forEach((id, state, verifiedEmail, attemptedEmails, resets) -> {
+            assertEquals(expected.get(id), state);
+            visited[0]++;
+        });
+        assertEquals(10000, visited[0]);
+    }
+    
+    @Test
+    public void attemptedEmailsAreDistinct() {
+        UserStore users = new UserStore();
+        users.addAttemptedEmail(USER, "a@example.com");
+        users.addAttemptedEmail(USER, "b@example.com");
+        users.addAttemptedEmail(USER, "a@example.com");
+        assertArrayEquals(new String[] { "a@example.com", "b@example.com" }, users.getAttemptedEmails(USER));
+        assertTrue(users.hasAttemptedEmail(USER, "b@example.com"));
+        assertFalse(users.hasAttemptedEmail(USER, "c@example.com"));
+    }
+    
+    @Test
+    public void snapshotIgnoresLaterChanges() {
+        UserStore users = new UserStore();
+        users.setState(USER, State.PENDING);
+        users.addAttemptedEmail(USER, "a@example.com");
+        UserStore.Snapshot snapshot = users.snapshot();
+        
+        users.setState(USER, State.VERIFIED);
+        users.addAttemptedEmail(USER, "b@example.com");
+        users.setState(USER + 1, State.PENDING);
+        
+        assertEquals(1, snapshot.emailCount());
+        assertEquals("a@example.com", snapshot.getEmail(1));
+        int[] visited = new int[1];
+        snapshot.forEach((id, state, verifiedEmail, attemptedEmails, resets) -> {
+            assertEquals(USER, id);
+            assertEquals(State.PENDING, state);
+            assertArrayEquals(new int[] { 1 }, attemptedEmails);
+            visited[0]++;
+        });
+        assertEquals(1, visited[0]);
+    }
+    
+    @Test
+    public void resetsAreClamped() {
+        UserStore users = new UserStore();
+        assertEquals(3, users.addResets(USER, 3, 999));
+        assertEquals(5, users.addResets(USER, 10, 5));
+        users.setResets(USER, -4);
+        assertEquals(0, users.getResets(USER));
+        users.setResets(USER, Integer.MAX_VALUE);
+        assertEquals(Short.MAX_VALUE, users.getResets(USER));
+    }
+    
+    @Test
+    public void claimsOnlyUnownedEmails() {
+        UserStore users = new UserStore();
+        assertTrue(users.claimEmail(USER, "donor@example.com"));
+        assertTrue(users.claimEmail(USER, "donor@example.com"));
+        assertFalse(users.claimEmail(USER + 1, "donor@example.com"));
+        assertNull(users.getVerifiedEmail(USER + 1));
+        assertEquals(USER, users.getEmailOwner("donor@example.com"));
+    }
+}